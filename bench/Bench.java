@@ -0,0 +1,182 @@
+/*
+ * @file   Bench.java
+ *
+ * End-to-end benchmark of the two-phase commit. The server and the user nodes run in one JVM on top
+ * of a LoopbackNetwork, or of SocketTransports over localhost, each in its own temporary
+ * directory. A load generator keeps a window of collages in flight, and the throughput and the
+ * latency of the prepare stage, the commit stage and the whole commit are reported once all
+ * collages have ended. Parameters are system properties:
+ *
+ * bench.users     number of user nodes (4)
+ * bench.commits   number of collages (2000)
+ * bench.sources   sources per collage (4)
+ * bench.overlap   probability that a source is taken from a small set of hot files shared by all
+ *                 collages instead of a fresh file (0.0)
+ * bench.hot       hot files per user (16)
+ * bench.window    collages in flight at once (32)
+ * bench.batch     collages started together with one startCommits() call (1)
+ * bench.imageSize size of a collage image in bytes (16384)
+ * bench.transport loopback or socket (loopback)
+ * bench.delay     one-way message delay in microseconds (200)
+ * bench.jitter    random extra delay of a message in microseconds, reorders messages (0)
+ * bench.drop      probability that a message is lost (0.0)
+ * bench.fsync     duration of an fsync in microseconds (1000)
+ * bench.shards    coordinator shards of the server, each with its own log (1)
+ *
+ * A hot file is deleted by the first collage that commits with it, later collages using it abort.
+ * The delay, jitter, loss and fsync settings only apply to the loopback transport, over sockets
+ * messages take the real time of the loopback interface and an fsync really syncs.
+ */
+
+import java.io.*;
+import java.net.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+
+public class Bench {
+  private static final int USERS = Integer.getInteger("bench.users", 4);
+  private static final int COMMITS = Integer.getInteger("bench.commits", 2000);
+  private static final int SOURCES = Integer.getInteger("bench.sources", 4);
+  private static final double OVERLAP =
+      Double.parseDouble(System.getProperty("bench.overlap", "0"));
+  private static final int HOT = Integer.getInteger("bench.hot", 16);
+  private static final int WINDOW = Integer.getInteger("bench.window", 32);
+  private static final int BATCH = Math.min(Integer.getInteger("bench.batch", 1), WINDOW);
+  private static final int IMAGE_SIZE = Integer.getInteger("bench.imageSize", 16384);
+  private static final boolean SOCKET = "socket".equals(System.getProperty("bench.transport"));
+  private static final long DELAY = Long.getLong("bench.delay", 200);
+  private static final long JITTER = Long.getLong("bench.jitter", 0);
+  private static final double DROP = Double.parseDouble(System.getProperty("bench.drop", "0"));
+  private static final long FSYNC = Long.getLong("bench.fsync", 1000);
+  private static final int SHARDS = Integer.getInteger("bench.shards", 1);
+
+  private static final LoopbackNetwork network = new LoopbackNetwork(DELAY, JITTER, DROP, FSYNC, 4);
+  private static final Map<String, InetSocketAddress> peers = new ConcurrentHashMap<>();
+
+  private static final long[] issued = new long[COMMITS]; // when each collage was started
+  private static final long[] prepare = new long[COMMITS]; // latency of each stage
+  private static final long[] commit = new long[COMMITS];
+  private static final long[] total = new long[COMMITS];
+
+  /** create an empty source file on a user node */
+  private static void touch(Path dir, String file) throws IOException {
+    Files.write(dir.resolve(file), new byte[0]);
+  }
+
+  /** pick the distinct sources of the next collage, creating the fresh files on the way */
+  private static String[] sources(Path[] dirs, Random random, int[] fresh) throws IOException {
+    LinkedHashSet<String> result = new LinkedHashSet<>();
+    while (result.size() < SOURCES) {
+      int user = random.nextInt(USERS);
+      String file;
+      if (random.nextDouble() < OVERLAP) {
+        file = "h" + random.nextInt(HOT) + ".jpg";
+      } else {
+        file = "f" + fresh[user]++ + ".jpg";
+        touch(dirs[user], file);
+      }
+      result.add("u" + user + CoordinatorEntry.DELIMITER + file);
+    }
+    return result.toArray(new String[0]);
+  }
+
+  /** connect a node to the other nodes with the selected transport */
+  private static Transport attach(String addr, Collection<Path> synced,
+      ProjectLib.MessageHandling node) throws IOException {
+    if (!SOCKET)
+      return network.attach(addr, node);
+    SocketTransport transport = new SocketTransport(
+        addr, new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), peers, synced, node);
+    peers.put(addr, transport.localAddress());
+    return transport;
+  }
+
+  /** percentile of sorted latencies, in milliseconds */
+  private static double percentile(long[] sorted, double p) {
+    int i = (int) Math.ceil(p * sorted.length) - 1;
+    return sorted[Math.min(Math.max(i, 0), sorted.length - 1)] / 1e6;
+  }
+
+  private static void report(String phase, long[] latencies) {
+    long[] sorted = latencies.clone();
+    Arrays.sort(sorted);
+    System.out.printf("%-8s %10.3f %10.3f %10.3f%n", phase, percentile(sorted, 0.5),
+        percentile(sorted, 0.99), percentile(sorted, 0.999));
+  }
+
+  private static void delete(Path root) throws IOException {
+    try (var paths = Files.walk(root)) {
+      paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+    }
+  }
+
+  public static void main(String args[]) throws Exception {
+    Path root = Files.createTempDirectory("twopc-bench");
+
+    // start the user nodes with their hot files, then the server
+    Path[] dirs = new Path[USERS];
+    for (int i = 0; i < USERS; i++) {
+      dirs[i] = Files.createDirectories(root.resolve("u" + i));
+      for (int j = 0; j < HOT; j++) touch(dirs[i], "h" + j + ".jpg");
+      UserNode user = new UserNode("u" + i, dirs[i]);
+      user.PL = attach("u" + i, user.synced(), user);
+      user.recover();
+    }
+    Path home = Files.createDirectories(root.resolve(MessageBody.SERVER));
+    ShardedServer server = new ShardedServer(home, SHARDS);
+    server.setTransport(attach(MessageBody.SERVER, server.synced(), server));
+
+    Semaphore window = new Semaphore(WINDOW);
+    CountDownLatch done = new CountDownLatch(COMMITS);
+    LongAdder committed = new LongAdder();
+    server.setOnFinish(entry -> {
+      long now = System.nanoTime();
+      int cid = entry.cid;
+      prepare[cid] = entry.decideTime - issued[cid];
+      commit[cid] = now - entry.decideTime;
+      total[cid] = now - issued[cid];
+      if (entry.canCommit)
+        committed.increment();
+      window.release();
+      done.countDown();
+    });
+    server.recover();
+
+    // collages are started from this thread only and go to the shards in turn, so the i-th one
+    // gets commit id i
+    Random random = new Random(15440);
+    int[] fresh = new int[USERS];
+    byte[] img = new byte[IMAGE_SIZE];
+    long start = System.nanoTime();
+    for (int i = 0; i < COMMITS; i += BATCH) {
+      int n = Math.min(BATCH, COMMITS - i);
+      List<CommitRequest> batch = new ArrayList<>();
+      for (int j = i; j < i + n; j++) {
+        String[] sources = sources(dirs, random, fresh);
+        random.nextBytes(img);
+        batch.add(new CommitRequest("c" + j + ".jpg", img.clone(), sources));
+      }
+      window.acquire(n);
+      long now = System.nanoTime();
+      for (int j = i; j < i + n; j++) issued[j] = now;
+      server.startCommits(batch);
+    }
+    done.await();
+    double seconds = (System.nanoTime() - start) / 1e9;
+
+    System.out.printf("%d collages (%d committed, %d aborted) in %.3f s: %.1f commits/s%n", COMMITS,
+        committed.sum(), COMMITS - committed.sum(), seconds, COMMITS / seconds);
+    if (!SOCKET)
+      System.out.printf(
+          "%d messages sent, %d dropped%n", network.sent.sum(), network.dropped.sum());
+    System.out.printf("%-8s %10s %10s %10s%n", "ms", "p50", "p99", "p999");
+    report("prepare", prepare);
+    report("commit", commit);
+    report("total", total);
+    System.out.print(server.metrics.dump());
+    delete(root);
+    System.exit(0);
+  }
+}
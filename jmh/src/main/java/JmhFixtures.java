@@ -0,0 +1,172 @@
+/*
+ * @file   JmhFixtures.java
+ *
+ * Fixtures of the JMH benchmarks. JMH does not accept benchmarks in the default package, and a
+ * named package cannot refer to the classes in ../src, so the benchmarks in twopc.jmh get their
+ * work from here through JDK functional interfaces. Nodes run in temporary directories on top of
+ * a transport that drops messages and does not sync anything.
+ */
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.*;
+
+public class JmhFixtures {
+  private static final String[] TYPES = {"PREPARE", "VOTE", "DECISION", "ACK"};
+
+  /** transport that keeps the last message sent, and syncs nothing */
+  private static class Capture implements Transport {
+    byte[] last;
+
+    public void sendMessage(ProjectLib.Message msg) {
+      last = msg.body;
+    }
+
+    public void fsync() {}
+
+    public boolean askUser(byte[] img, String[] sources) {
+      return true;
+    }
+  }
+
+  /** temporary working directory of a node, removed when the JVM exits */
+  private static Path tempDir(String name) throws IOException {
+    Path dir = Files.createTempDirectory("twopc-jmh-" + name);
+    Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+      try (var paths = Files.walk(dir)) {
+        paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+      } catch (IOException e) {
+        e.printStackTrace();
+      }
+    }));
+    return dir;
+  }
+
+  /** n sources spread over 8 users */
+  public static String[] sources(int n) {
+    String[] result = new String[n];
+    for (int i = 0; i < n; i++) result[i] = "u" + (i % 8) + CoordinatorEntry.DELIMITER + i + ".jpg";
+    return result;
+  }
+
+  private static MessageBody message(String type, int imageSize, int sources) {
+    switch (type) {
+      case "PREPARE":
+        return new MessageBody(7, "u0", new byte[imageSize], sources(sources), 0);
+      case "VOTE":
+        return new MessageBody(7, true);
+      case "DECISION":
+        return new MessageBody(7, "u0", sources(sources), Decision.COMMIT, 0);
+      default:
+        return new MessageBody(7);
+    }
+  }
+
+  /** sends a message of the given type with sendMessageBody() and returns what went on the wire */
+  public static Supplier<byte[]> send(String type, int imageSize, int sources) {
+    MessageBody body = message(type, imageSize, sources);
+    Capture capture = new Capture();
+    return () -> {
+      body.sendMessageBody(capture);
+      return capture.last;
+    };
+  }
+
+  /** serializes a message of the given type with the legacy Java serialization */
+  public static Supplier<byte[]> serialize(String type, int imageSize, int sources) {
+    MessageBody body = message(type, imageSize, sources);
+    return () -> {
+      try {
+        return body.serialize();
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    };
+  }
+
+  /** receives a message, in any of the two formats */
+  public static Function<byte[], Object> deserialize() {
+    return MessageBody::deserialize;
+  }
+
+  public static Function<String[], Object> parseSources() {
+    return CoordinatorEntry::parseSources;
+  }
+
+  /**
+   * flushes one record with Server.flush() and waits until it is durable, on a server with the
+   * given number of commits in progress
+   */
+  public static Callable<Object> serverFlush(int state) throws IOException {
+    Server server = new Server(tempDir("server"));
+    server.PL = new Capture();
+    server.recover();
+    String[] sources = sources(4);
+    for (int i = 0; i < state; i++) {
+      CoordinatorEntry entry = server.coordinator.addEntry("c" + i + ".jpg", "0", 0, sources);
+      server.append(LogRecord.begin(entry.cid, entry.filename, "0", 0, sources));
+    }
+    return () -> {
+      CountDownLatch durable = new CountDownLatch(1);
+      server.flush(LogRecord.ack(0, "u0"), durable::countDown);
+      durable.await();
+      return durable;
+    };
+  }
+
+  /**
+   * appends a VOTED record and flushes it with UserNode.flush(), waiting until it is durable, on a
+   * user node whose log holds the given number of commits
+   */
+  public static Callable<Object> userFlush(int state) throws IOException {
+    UserNode user = new UserNode("u0", tempDir("user"));
+    user.PL = new Capture();
+    user.recover();
+    String[] sources = sources(4);
+    for (int i = 0; i < state; i++) {
+      user.slave.addEntry(i, sources, true);
+      user.append(LogRecord.voted(i, sources, true));
+    }
+    int[] next = {state};
+    return () -> {
+      CountDownLatch durable = new CountDownLatch(1);
+      Outbox out = new Outbox();
+      user.append(LogRecord.voted(next[0]++, sources, true));
+      out.log(durable::countDown);
+      user.flush(out);
+      durable.await();
+      return durable;
+    };
+  }
+
+  /** arms and cancels a timeout on a timer wheel that already tracks the given number of them */
+  public static Runnable timeout(int outstanding) {
+    TimerWheel timers = new TimerWheel(Server.TICK, Server.WHEEL_SIZE, "jmh-timer");
+    for (int i = 0; i < outstanding; i++) timers.schedule(3600 * 1000, () -> {});
+    return () -> timers.schedule(1000, () -> {}).cancel();
+  }
+
+  /**
+   * handles the timeout of a decision with Server.checkTimeout(), i.e. resends it and arms the
+   * next timeout, on a server with the given number of commits waiting for ACKs
+   */
+  public static Runnable checkTimeout(int outstanding) throws IOException {
+    Server server = new Server(tempDir("server"));
+    server.PL = new Capture();
+    server.recover();
+    CoordinatorEntry[] entries = new CoordinatorEntry[outstanding];
+    String[] sources = sources(4);
+    for (int i = 0; i < outstanding; i++) {
+      entries[i] = server.coordinator.addEntry("c" + i + ".jpg", "0", 0, sources);
+      entries[i].endPrepareStage();
+      for (String addr : entries[i].pendings) server.armTimeout(entries[i], addr, false);
+    }
+    int[] next = {0};
+    return () -> {
+      CoordinatorEntry entry = entries[next[0]++ % entries.length];
+      server.checkTimeout(entry, "u0", Stage.COMMIT);
+    };
+  }
+}
@@ -0,0 +1,23 @@
+/*
+ * @file   Fixtures.java
+ *
+ * Looks up the fixtures of JmhFixtures in the default package. Lookups are reflective and only
+ * happen during setup, the benchmarks themselves call plain functional interfaces.
+ */
+
+package twopc.jmh;
+
+import java.lang.reflect.Method;
+
+final class Fixtures {
+  private Fixtures() {}
+
+  @SuppressWarnings("unchecked")
+  static <T> T get(String name, Object... args) throws Exception {
+    for (Method method : Class.forName("JmhFixtures").getMethods()) {
+      if (method.getName().equals(name) && method.getParameterCount() == args.length)
+        return (T) method.invoke(null, args);
+    }
+    throw new NoSuchMethodException("JmhFixtures." + name);
+  }
+}
@@ -0,0 +1,40 @@
+/*
+ * @file   FlushBenchmark.java
+ *
+ * Making a log update durable with Server.flush() and UserNode.flush(), by the number of commits
+ * held in the log. The fsync itself is a no-op, so only the cost of writing the log is measured.
+ */
+
+package twopc.jmh;
+
+import java.util.concurrent.*;
+import org.openjdk.jmh.annotations.*;
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class FlushBenchmark {
+  @Param({"0", "1000", "10000"}) public int state;
+
+  private Callable<Object> server;
+  private Callable<Object> user;
+
+  @Setup
+  public void setup() throws Exception {
+    server = Fixtures.get("serverFlush", state);
+    user = Fixtures.get("userFlush", state);
+  }
+
+  @Benchmark
+  public Object serverFlush() throws Exception {
+    return server.call();
+  }
+
+  @Benchmark
+  public Object userFlush() throws Exception {
+    return user.call();
+  }
+}
@@ -0,0 +1,47 @@
+/*
+ * @file   MessageBenchmark.java
+ *
+ * Sending and receiving each of the four message types, in the binary format and in the legacy
+ * Java serialization, by image size and number of sources. Run with -prof gc for allocation rates.
+ */
+
+package twopc.jmh;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.*;
+import org.openjdk.jmh.annotations.*;
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class MessageBenchmark {
+  @Param({"PREPARE", "VOTE", "DECISION", "ACK"}) public String type;
+  @Param({"binary", "java"}) public String codec;
+  @Param({"1024", "1048576"}) public int imageSize;
+  @Param({"1", "64"}) public int sources;
+
+  private Supplier<byte[]> encode;
+  private Function<byte[], Object> decode;
+  private byte[] encoded;
+
+  @Setup
+  public void setup() throws Exception {
+    encode = Fixtures.get(
+        codec.equals("binary") ? "send" : "serialize", type, imageSize, sources);
+    decode = Fixtures.get("deserialize");
+    encoded = encode.get();
+  }
+
+  @Benchmark
+  public byte[] send() {
+    return encode.get();
+  }
+
+  @Benchmark
+  public Object deserialize() {
+    return decode.apply(encoded);
+  }
+}
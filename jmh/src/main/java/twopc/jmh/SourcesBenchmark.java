@@ -0,0 +1,35 @@
+/*
+ * @file   SourcesBenchmark.java
+ *
+ * Splitting the sources of a collage by user with CoordinatorEntry.parseSources().
+ */
+
+package twopc.jmh;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import org.openjdk.jmh.annotations.*;
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class SourcesBenchmark {
+  @Param({"1", "16", "256"}) public int sources;
+
+  private Function<String[], Object> parse;
+  private String[] input;
+
+  @Setup
+  public void setup() throws Exception {
+    parse = Fixtures.get("parseSources");
+    input = Fixtures.get("sources", sources);
+  }
+
+  @Benchmark
+  public Object parseSources() {
+    return parse.apply(input);
+  }
+}
@@ -0,0 +1,40 @@
+/*
+ * @file   TimeoutBenchmark.java
+ *
+ * Timeout handling by the number of outstanding messages: arming and cancelling a timeout on the
+ * timer wheel, and resending a decision from Server.checkTimeout().
+ */
+
+package twopc.jmh;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class TimeoutBenchmark {
+  @Param({"1000", "100000"}) public int outstanding;
+
+  private Runnable timeout;
+  private Runnable checkTimeout;
+
+  @Setup
+  public void setup() throws Exception {
+    timeout = Fixtures.get("timeout", outstanding);
+    checkTimeout = Fixtures.get("checkTimeout", outstanding / 4);
+  }
+
+  @Benchmark
+  public void timerWheel() {
+    timeout.run();
+  }
+
+  @Benchmark
+  public void checkTimeout() {
+    checkTimeout.run();
+  }
+}
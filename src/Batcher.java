@@ -0,0 +1,126 @@
+/*
+ * @file   Batcher.java
+ *
+ * Per-destination outbound batcher. Messages to the same destination are held for a short linger
+ * window and then sent together in one envelope, so a node taking part in many concurrent commits
+ * gets a few larger messages instead of a flood of small ones. A destination's batch is sent early
+ * once it reaches a size cap, and messages larger than the cap (e.g. prepares with large images)
+ * are sent on their own right away. A linger of 0, or the legacy codec, disables batching. A
+ * message for several destinations is encoded once, and the same bytes are sent to all of them.
+ * Messages that are already grouped by destination, e.g. the proposals of a batch of commits, skip
+ * the linger window and are sent right away in envelopes of up to the size cap.
+ */
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.BiConsumer;
+
+public class Batcher {
+  public static final long LINGER = Long.getLong("twopc.linger", 2); // in milliseconds
+  public static final int MAX_BATCH = Integer.getInteger("twopc.maxBatch", 64 * 1024); // in bytes
+
+  private final long linger;
+  private final int maxBytes;
+  private final BiConsumer<String, byte[]> sender; // sends raw bytes to a destination
+  private final HashMap<String, ArrayList<byte[]>> batches; // messages waiting for each destination
+  private final HashMap<String, Integer> sizes; // total size of the waiting messages
+  private final ScheduledExecutorService flusher;
+
+  public Batcher(long linger, int maxBytes, BiConsumer<String, byte[]> sender) {
+    this.linger = linger;
+    this.maxBytes = maxBytes;
+    this.sender = sender;
+    this.batches = new HashMap<>();
+    this.sizes = new HashMap<>();
+    this.flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+      Thread t = new Thread(r, "batcher");
+      t.setDaemon(true);
+      return t;
+    });
+  }
+
+  /** queue a message for its destination */
+  public void send(MessageBody body) {
+    sendAll(List.of(body.dest), body);
+  }
+
+  /** encode a message in the format in use, null if it cannot be encoded */
+  public static byte[] encode(MessageBody body) {
+    try {
+      return MessageBody.LEGACY_CODEC ? body.serialize() : MessageCodec.encode(body);
+    } catch (Exception e) {
+      e.printStackTrace();
+      return null;
+    }
+  }
+
+  /** queue the same message for several destinations, it is encoded only once */
+  public void sendAll(Collection<String> dests, MessageBody body) {
+    byte[] bytes = encode(body);
+    if (bytes != null)
+      sendAll(dests, bytes);
+  }
+
+  /** queue an already encoded message for several destinations, the bytes are never modified */
+  public void sendAll(Collection<String> dests, byte[] bytes) {
+    for (String dest : dests) {
+      if (MessageBody.LEGACY_CODEC || linger <= 0 || bytes.length >= maxBytes)
+        sender.accept(dest, bytes);
+      else
+        queue(dest, bytes);
+    }
+  }
+
+  /** send already encoded messages to one destination together, without waiting for the linger */
+  public void sendGroup(String dest, List<byte[]> messages) {
+    if (MessageBody.LEGACY_CODEC || linger <= 0) {
+      for (byte[] bytes : messages) sender.accept(dest, bytes);
+      return;
+    }
+    ArrayList<byte[]> envelope = new ArrayList<>();
+    int size = 0;
+    for (byte[] bytes : messages) {
+      if (!envelope.isEmpty() && size + bytes.length > maxBytes) {
+        sender.accept(dest, MessageCodec.encodeBatch(envelope));
+        envelope = new ArrayList<>();
+        size = 0;
+      }
+      envelope.add(bytes);
+      size += bytes.length;
+    }
+    if (!envelope.isEmpty())
+      sender.accept(dest, MessageCodec.encodeBatch(envelope));
+  }
+
+  private void queue(String dest, byte[] bytes) {
+    ArrayList<byte[]> full = null;
+    synchronized (this) {
+      ArrayList<byte[]> batch = batches.get(dest);
+      if (batch == null) {
+        batch = new ArrayList<>();
+        batches.put(dest, batch);
+        sizes.put(dest, 0);
+        flusher.schedule(() -> flush(dest), linger, TimeUnit.MILLISECONDS);
+      }
+      batch.add(bytes);
+      int size = sizes.merge(dest, bytes.length, Integer::sum);
+      if (size >= maxBytes) {
+        full = batches.remove(dest);
+        sizes.remove(dest);
+      }
+    }
+    if (full != null)
+      sender.accept(dest, MessageCodec.encodeBatch(full));
+  }
+
+  /** send the messages waiting for a destination, if any */
+  public void flush(String dest) {
+    ArrayList<byte[]> batch;
+    synchronized (this) {
+      batch = batches.remove(dest);
+      sizes.remove(dest);
+    }
+    if (batch != null)
+      sender.accept(dest, MessageCodec.encodeBatch(batch));
+  }
+}
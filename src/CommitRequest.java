@@ -0,0 +1,18 @@
+/*
+ * @file   CommitRequest.java
+ *
+ * A collage to be committed, the arguments of one ProjectLib.CommitServing.startCommit() call, so
+ * that several collages can be handed to the server at once.
+ */
+
+public class CommitRequest {
+  public final String filename; // file name of the collage on the server
+  public final byte[] img; // the collage image
+  public final String[] sources; // "addr:file" sources the collage is made of
+
+  public CommitRequest(String filename, byte[] img, String[] sources) {
+    this.filename = filename;
+    this.img = img;
+    this.sources = sources;
+  }
+}
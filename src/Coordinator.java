@@ -3,20 +3,40 @@
  * @author Tengda Wang <tengdaw@andrew.cmu.edu>
  *
  * This is the implementation of a central coordinator on the server side that tracks and logs the
- * details of each transaction/commit. The logs will be flushed to disk when the log entry is
- * updated for recovery purposes.
+ * details of each transaction/commit. Every update to a log entry is appended to the write-ahead
+ * log as a LogRecord, and the coordinator can be rebuilt by replaying these records in order for
+ * recovery purposes. A commit is retired from memory once it ends and is left out of the next
+ * checkpoint of the log, so the state only holds commits in progress. The decisions of the most
+ * recently retired commits are kept to answer late messages, and the low watermark tells the users
+ * which commits have ended so they can forget them too. A coordinator shard hands out every
+ * stride-th id only, starting from its shard number, so the shards never hand out the same id.
  */
 
 import java.io.Serializable;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.*;
+import java.util.concurrent.ConcurrentSkipListMap;
 
 public class Coordinator implements Serializable {
+  public static final int RECENT = Integer.getInteger("twopc.recent", 4096);
+
   public int nextId; // strictly-increasing running id, uniquely identifies a commit
-  public ConcurrentHashMap<Integer, CoordinatorEntry> info; // track log entry of each commit
+  public final int stride; // step between the ids of this coordinator, the number of shards
+  public ConcurrentSkipListMap<Integer, CoordinatorEntry> info; // log entry of each live commit
+  private final transient LinkedHashMap<Integer, Boolean> recent; // decisions of retired commits
 
   public Coordinator() {
-    nextId = 0;
-    info = new ConcurrentHashMap<>();
+    this(0, 1);
+  }
+
+  public Coordinator(int shard, int shards) {
+    nextId = shard;
+    stride = shards;
+    info = new ConcurrentSkipListMap<>();
+    recent = new LinkedHashMap<>() {
+      protected boolean removeEldestEntry(Map.Entry<Integer, Boolean> eldest) {
+        return size() > RECENT;
+      }
+    };
   }
 
   /** retrieve an log entry based on commit id */
@@ -25,10 +45,61 @@ public class Coordinator implements Serializable {
   }
 
   /** add a new log entry and assign it a unique id */
-  public CoordinatorEntry addEntry(String filename, byte[] img, String[] sources) {
-    int cid = nextId++;
-    CoordinatorEntry entry = new CoordinatorEntry(cid, filename, img, sources);
+  public synchronized CoordinatorEntry addEntry(
+      String filename, String imgHash, int imgLength, String[] sources) {
+    int cid = nextId;
+    nextId += stride;
+    CoordinatorEntry entry = new CoordinatorEntry(cid, filename, imgHash, imgLength, sources);
     info.put(cid, entry);
     return entry;
   }
-}
\ No newline at end of file
+
+  /** retire an ended commit from memory, only its decision is remembered for a while */
+  public synchronized void retire(CoordinatorEntry entry) {
+    info.remove(entry.cid);
+    recent.put(entry.cid, entry.canCommit);
+  }
+
+  /** decision of a recently retired commit, null if it is not known anymore */
+  public synchronized Boolean recentDecision(int cid) {
+    return recent.get(cid);
+  }
+
+  /** lowest commit id that may still be in progress, every commit below it has ended */
+  public synchronized int lowWatermark() {
+    Map.Entry<Integer, CoordinatorEntry> first = info.firstEntry();
+    return (first == null) ? nextId : first.getKey();
+  }
+
+  /** replay a record from the write-ahead log, records of unknown commits are ignored */
+  public void apply(LogRecord rec) {
+    if (rec.type == LogRecord.Type.CHECKPOINT) {
+      nextId = Math.max(nextId, rec.cid);
+      return;
+    }
+    if (rec.type == LogRecord.Type.BEGIN) {
+      info.put(rec.cid,
+          new CoordinatorEntry(rec.cid, rec.filename, rec.imgHash, rec.imgLength, rec.sources));
+      nextId = Math.max(nextId, rec.cid + stride);
+      return;
+    }
+    CoordinatorEntry entry = info.get(rec.cid);
+    if (entry == null)
+      return;
+    entry.apply(rec);
+    if (entry.stage == Stage.END)
+      retire(entry);
+  }
+
+  /** compact set of records from which the current state of the coordinator can be rebuilt */
+  public List<LogRecord> checkpoint() {
+    List<LogRecord> records = new ArrayList<>();
+    records.add(LogRecord.checkpoint(nextId));
+    for (CoordinatorEntry entry : info.values()) {
+      // an entry may end while the checkpoint is taken, it is retired right after
+      if (entry.stage != Stage.END)
+        records.addAll(entry.checkpoint());
+    }
+    return records;
+  }
+}
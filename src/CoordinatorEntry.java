@@ -9,18 +9,29 @@
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class CoordinatorEntry implements Serializable {
   public static final String DELIMITER = ":";
 
   public final int cid; // unique id for commit
   public final String filename; // file name on server
-  public final byte[] img; // image byte array
+  public final String imgHash; // content hash of the image, the image itself is in the ImageStore
+  public final int imgLength; // image size in bytes
   public final HashMap<String, ArrayList<String>>
       userToFiles; // the required resources of each user
-  public HashSet<String> pendings; // users whose responses are not received by the server
+  public Set<String> pendings; // users whose responses are not received by the server
+  public final Set<String> released; // users that voted no and take no part in the COMMIT stage
   public Stage stage; // stage in 2pc (PROPOSE, COMMIT, or END)
   public boolean canCommit; // commit decision
+  public transient long startTime; // System.nanoTime() when the commit started or was recovered
+  public transient long decideTime; // System.nanoTime() when the PREPARE stage ended
+  public transient volatile boolean logged; // whether the DECISION record is in the log
+  public final transient HashMap<String, Outstanding>
+      outstanding; // last unanswered message sent to each user, only used by the server
+  public final transient CompletableFuture<Boolean>
+      outcome; // completed with the decision once the collage is published or dropped
 
   /** static helper function to parse the commit source files and separate them by user */
   public static HashMap<String, ArrayList<String>> parseSources(String[] sources) {
@@ -36,22 +47,61 @@ public class CoordinatorEntry implements Serializable {
     return result;
   }
 
+  /** inverse of parseSources(), join the resources of each user back to "addr:file" sources */
+  public static String[] joinSources(HashMap<String, ArrayList<String>> userToFiles) {
+    ArrayList<String> result = new ArrayList<>();
+    userToFiles.forEach((addr, files) -> {
+      for (String file : files) result.add(addr + DELIMITER + file);
+    });
+    return result.toArray(new String[0]);
+  }
+
+  /**
+   * every user that is not released is pending at the start of a stage, the set may be read while
+   * it is updated
+   */
+  private Set<String> newPendings() {
+    Set<String> result = ConcurrentHashMap.newKeySet();
+    result.addAll(userToFiles.keySet());
+    result.removeAll(released);
+    return result;
+  }
+
   /** constructor */
-  public CoordinatorEntry(int cid, String filename, byte[] img, String[] sources) {
+  public CoordinatorEntry(
+      int cid, String filename, String imgHash, int imgLength, String[] sources) {
     this.cid = cid;
     this.filename = filename;
-    this.img = img;
+    this.imgHash = imgHash;
+    this.imgLength = imgLength;
     this.userToFiles = parseSources(sources);
-    this.pendings = new HashSet<>(userToFiles.keySet());
+    this.released = ConcurrentHashMap.newKeySet();
+    this.pendings = newPendings();
     this.stage = Stage.PROPOSE;
     this.canCommit = true;
+    this.outstanding = new HashMap<>();
+    this.outcome = new CompletableFuture<>();
+    this.startTime = System.nanoTime();
+  }
+
+  /**
+   * record the vote of a user in the PREPARE stage. A user voting no has locked nothing and has
+   * nothing to undo, so it is released from the COMMIT stage.
+   */
+  public synchronized void vote(String addr, boolean vote) {
+    if (!vote) {
+      canCommit = false; // all users must vote yes in order to commit
+      released.add(addr);
+    }
+    pendings.remove(addr);
   }
 
   /** mark end of PREPARE stage and transit to COMMIT stage */
   public synchronized void endPrepareStage() {
     assert (this.stage == Stage.PROPOSE);
     this.stage = Stage.COMMIT;
-    this.pendings = new HashSet<>(userToFiles.keySet());
+    this.pendings = newPendings();
+    this.decideTime = System.nanoTime();
   }
 
   /** mark end of COMMIT stage and transit to END stage */
@@ -59,4 +109,61 @@ public class CoordinatorEntry implements Serializable {
     assert (this.stage == Stage.COMMIT);
     this.stage = Stage.END;
   }
-}
\ No newline at end of file
+
+  /** replay a VOTE, DECISION, ACK or END record of this commit from the write-ahead log */
+  public synchronized void apply(LogRecord rec) {
+    switch (rec.type) {
+      case VOTE:
+        if (stage == Stage.PROPOSE)
+          vote(rec.addr, rec.flag);
+        break;
+      case DECISION:
+        if (stage != Stage.PROPOSE)
+          break;
+        canCommit = rec.flag;
+        endPrepareStage();
+        logged = true;
+        break;
+      case ACK:
+        if (stage == Stage.COMMIT)
+          pendings.remove(rec.addr);
+        break;
+      case END:
+        if (stage == Stage.COMMIT)
+          endCommitStage();
+        break;
+      default:
+        break;
+    }
+  }
+
+  /** records that rebuild the current state of this commit, used to checkpoint the log */
+  public synchronized List<LogRecord> checkpoint() {
+    List<LogRecord> records = new ArrayList<>();
+    records.add(LogRecord.begin(cid, filename, imgHash, imgLength, joinSources(userToFiles)));
+    if (stage == Stage.PROPOSE) {
+      for (String addr : userToFiles.keySet()) {
+        if (!pendings.contains(addr))
+          records.add(LogRecord.vote(cid, addr, !released.contains(addr)));
+      }
+      return records;
+    }
+    if (!logged) {
+      // decided, but the decision waits for the image to be written and may never reach the log
+      for (String addr : userToFiles.keySet())
+        records.add(LogRecord.vote(cid, addr, !released.contains(addr)));
+      return records;
+    }
+    for (String addr : released) records.add(LogRecord.vote(cid, addr, false));
+    records.add(LogRecord.decision(cid, canCommit));
+    if (stage == Stage.END) {
+      records.add(LogRecord.end(cid));
+      return records;
+    }
+    for (String addr : userToFiles.keySet()) {
+      if (!pendings.contains(addr) && !released.contains(addr))
+        records.add(LogRecord.ack(cid, addr));
+    }
+    return records;
+  }
+}
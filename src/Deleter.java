@@ -0,0 +1,97 @@
+/*
+ * @file   Deleter.java
+ *
+ * Background deletion of the sources of committed collages on a user node. Once the commit decision
+ * is durable, the sources are pending deletion, which the log already records, so the user can
+ * acknowledge the decision right away and leave the deletion to this thread. It takes all commits
+ * pending deletion at once, deletes their files, and makes the whole batch durable with a single
+ * sync before the owner logs the deletions as done. A commit whose files cannot all be deleted
+ * stays pending and is retried later, so it is never logged as deleted while a file is left.
+ */
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+public class Deleter implements Runnable {
+  public static final long RETRY = Long.getLong("twopc.deleteRetry", 1000); // in milliseconds
+
+  private final Path dir; // directory of the source files
+  private final Consumer<List<SlaveEntry>> done; // logs a durable batch and releases its locks
+  private final Runnable sync; // makes the deletions durable
+  private ArrayList<SlaveEntry> pending; // commits waiting for the next batch
+
+  public Deleter(Path dir, Runnable sync, Consumer<List<SlaveEntry>> done, String name) {
+    this.dir = dir;
+    this.sync = sync;
+    this.done = done;
+    this.pending = new ArrayList<>();
+    Thread t = new Thread(this, name);
+    t.setDaemon(true);
+    t.start();
+  }
+
+  /** queue the sources of a committed collage for deletion */
+  public synchronized void submit(SlaveEntry entry) {
+    pending.add(entry);
+    notifyAll();
+  }
+
+  public void run() {
+    while (true) {
+      ArrayList<SlaveEntry> batch;
+      synchronized (this) {
+        while (pending.isEmpty()) {
+          try {
+            wait();
+          } catch (InterruptedException e) {
+            return;
+          }
+        }
+        batch = pending;
+        pending = new ArrayList<>();
+      }
+      ArrayList<SlaveEntry> deleted = new ArrayList<>();
+      ArrayList<SlaveEntry> failed = new ArrayList<>();
+      for (SlaveEntry entry : batch) (delete(entry) ? deleted : failed).add(entry);
+      if (!deleted.isEmpty()) {
+        try {
+          sync.run();
+          done.accept(deleted);
+        } catch (Exception e) {
+          e.printStackTrace();
+          failed.addAll(deleted);
+        }
+      }
+      if (!failed.isEmpty() && !retryLater(failed))
+        return;
+    }
+  }
+
+  /** delete the sources of a commit, returns false if any of them is still there */
+  private boolean delete(SlaveEntry entry) {
+    boolean result = true;
+    for (String source : entry.sources) {
+      try {
+        Files.deleteIfExists(dir.resolve(source));
+      } catch (IOException e) {
+        e.printStackTrace();
+        result = false;
+      }
+    }
+    return result;
+  }
+
+  /** put failed commits back and wait a while, or until new ones arrive, before the next batch */
+  private synchronized boolean retryLater(List<SlaveEntry> failed) {
+    pending.addAll(failed);
+    try {
+      wait(RETRY);
+      return true;
+    } catch (InterruptedException e) {
+      return false;
+    }
+  }
+}
@@ -0,0 +1,100 @@
+/*
+ * @file   GroupCommitter.java
+ *
+ * Group commit of log writes. Instead of syncing the log to disk once per state change, writers
+ * register their write with the committer and hand over a callback. A background thread makes all
+ * writes registered so far durable with a single sync and then runs their callbacks, so messages
+ * that depend on a log write (e.g. a vote or a commit decision) are only released once the write
+ * is on disk, while many concurrent transactions share the cost of one sync. An optional hook runs
+ * after the callbacks of each sync, e.g. to send the replies they released together.
+ */
+
+import java.util.ArrayList;
+
+public class GroupCommitter implements Runnable {
+  private final Runnable sync; // makes every write registered so far durable
+  private final Runnable afterBatch; // runs after the callbacks of each sync, may be null
+  private ArrayList<Runnable> waiting; // callbacks waiting for the next sync
+  private ArrayList<Runnable> syncing; // callbacks waiting for the sync in progress, if any
+  private boolean dirty; // whether writes are registered since the last sync started
+
+  public GroupCommitter(Runnable sync) {
+    this(sync, null);
+  }
+
+  public GroupCommitter(Runnable sync, Runnable afterBatch) {
+    this.sync = sync;
+    this.afterBatch = afterBatch;
+    this.waiting = new ArrayList<>();
+    this.dirty = false;
+    Thread t = new Thread(this, "group-commit");
+    t.setDaemon(true);
+    t.start();
+  }
+
+  /**
+   * Register a write that has been made (or will be made by the sync itself) and schedule a
+   * callback to run once the write is durable.
+   * @param onDurable  callback to run after the sync, may be null
+   */
+  public synchronized void commit(Runnable onDurable) {
+    dirty = true;
+    if (onDurable != null)
+      waiting.add(onDurable);
+    notifyAll();
+  }
+
+  /** Run a callback once all writes registered so far are durable, immediately if they are */
+  public void afterDurable(Runnable task) {
+    synchronized (this) {
+      if (dirty) {
+        waiting.add(task);
+        return;
+      } else if (syncing != null) {
+        syncing.add(task);
+        return;
+      }
+    }
+    task.run();
+  }
+
+  public void run() {
+    while (true) {
+      ArrayList<Runnable> batch;
+      synchronized (this) {
+        while (!dirty && waiting.isEmpty()) {
+          try {
+            wait();
+          } catch (InterruptedException e) {
+            return;
+          }
+        }
+        batch = waiting;
+        syncing = batch;
+        waiting = new ArrayList<>();
+        dirty = false;
+      }
+      try {
+        sync.run();
+      } catch (Exception e) {
+        e.printStackTrace();
+      }
+      synchronized (this) {
+        syncing = null;
+      }
+      for (Runnable task : batch) {
+        try {
+          task.run();
+        } catch (Exception e) {
+          e.printStackTrace();
+        }
+      }
+      try {
+        if (afterBatch != null)
+          afterBatch.run();
+      } catch (Exception e) {
+        e.printStackTrace();
+      }
+    }
+  }
+}
@@ -0,0 +1,212 @@
+/*
+ * @file   ImageStore.java
+ *
+ * Content-addressed store for collage images on the server side. Each image is written once
+ * through a FileChannel to a side file named by the SHA-256 hash of its contents, so log entries
+ * only need to keep the hash and length of their image instead of the image itself. Images are
+ * written and forced to disk by a background thread, so the write overlaps with the prepare phase
+ * of the commit instead of holding up the caller. Once a commit is decided, the image is either
+ * promoted to its final filename with an atomic rename, or discarded once its write is over.
+ * Identical images of concurrent commits share one file, tracked by a reference count.
+ */
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.security.MessageDigest;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.Consumer;
+
+public class ImageStore {
+  public static final String DIR = "images"; // directory of the side files
+
+  private final Path dir;
+  private final HashMap<String, Integer> refs; // number of undecided commits using each image
+  private final HashMap<String, CompletableFuture<Void>> written; // write of each image in use
+  private final ExecutorService writer; // writes the side files one at a time
+
+  public ImageStore(Path home) {
+    this(home, DIR);
+  }
+
+  /** store in a directory of the given name, so several coordinators can share a home */
+  public ImageStore(Path home, String name) {
+    this.dir = home.resolve(name);
+    this.refs = new HashMap<>();
+    this.written = new HashMap<>();
+    this.writer = Executors.newSingleThreadExecutor(r -> {
+      Thread t = new Thread(r, "image-writer");
+      t.setDaemon(true);
+      return t;
+    });
+    try {
+      Files.createDirectories(dir);
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
+  }
+
+  /** static helper function to compute the content hash of an image */
+  public static String hash(byte[] img) {
+    try {
+      StringBuilder sb = new StringBuilder();
+      for (byte b : MessageDigest.getInstance("SHA-256").digest(img))
+        sb.append(String.format("%02x", b));
+      return sb.toString();
+    } catch (Exception e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  /** location of the side file holding an image */
+  public Path locate(String hash) {
+    return dir.resolve(hash);
+  }
+
+  /**
+   * store an image unless an identical one is already stored, and return its hash right away. The
+   * image is written in the background, see whenWritten(). An image whose earlier write failed is
+   * written again.
+   */
+  public String put(byte[] img) {
+    String hash = hash(img);
+    synchronized (this) {
+      refs.merge(hash, 1, Integer::sum);
+      CompletableFuture<Void> prev = written.get(hash);
+      if (prev == null || prev.isCompletedExceptionally())
+        written.put(hash, CompletableFuture.runAsync(() -> write(hash, img), writer));
+    }
+    return hash;
+  }
+
+  /**
+   * write an image to its side file and force it to disk, unless the side file exists already
+   * @throws UncheckedIOException  if the image could not be written, which fails its future
+   */
+  private void write(String hash, byte[] img) {
+    Path path = locate(hash);
+    if (Files.exists(path))
+      return;
+    // write to a temporary file first so a crash never leaves a partial image under its hash
+    Path tmp = dir.resolve(hash + ".tmp");
+    try (FileChannel out = FileChannel.open(tmp, StandardOpenOption.CREATE,
+             StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+      ByteBuffer buf = ByteBuffer.wrap(img);
+      while (buf.hasRemaining()) out.write(buf);
+      out.force(true);
+      Files.move(tmp, path, StandardCopyOption.ATOMIC_MOVE);
+    } catch (IOException e) {
+      e.printStackTrace();
+      try {
+        Files.deleteIfExists(tmp);
+      } catch (IOException ignored) {
+      }
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  /**
+   * run a task once the write of an image is over, right away if it is, telling it whether the
+   * side file is written and forced. The task may run on the writer thread.
+   */
+  public void whenWritten(String hash, Consumer<Boolean> task) {
+    CompletableFuture<Void> write;
+    synchronized (this) {
+      write = written.get(hash);
+    }
+    if (write == null)
+      task.accept(Files.exists(locate(hash)));
+    else
+      write.whenComplete((result, error) -> task.accept(error == null));
+  }
+
+  /**
+   * register one more commit using an image whose side file is on disk already, used when
+   * rebuilding the store during recovery
+   */
+  public synchronized void retain(String hash) {
+    refs.merge(hash, 1, Integer::sum);
+    written.putIfAbsent(hash, CompletableFuture.completedFuture(null));
+  }
+
+  /** drop one reference to an image and return whether it was the last one */
+  private boolean release(String hash) {
+    Integer count = refs.get(hash);
+    if (count == null || count <= 1) {
+      refs.remove(hash);
+      written.remove(hash);
+      return true;
+    }
+    refs.put(hash, count - 1);
+    return false;
+  }
+
+  /**
+   * Publish the image of a committed collage under its final filename, once its side file is
+   * written. The side file is renamed atomically, unless another undecided commit still uses the
+   * same image, in which case it is copied to a temporary file that is forced and then renamed
+   * atomically, so the collage never appears under its filename half written. Publishing again
+   * after a crash does nothing if the side file was renamed already.
+   */
+  public synchronized void promote(String hash, Path target) {
+    try {
+      if (!Files.exists(locate(hash))) {
+        release(hash);
+      } else if (release(hash)) {
+        Files.move(locate(hash), target, StandardCopyOption.ATOMIC_MOVE,
+            StandardCopyOption.REPLACE_EXISTING);
+      } else {
+        Path tmp = target.resolveSibling(target.getFileName() + ".tmp");
+        Files.copy(locate(hash), tmp, StandardCopyOption.REPLACE_EXISTING);
+        try (FileChannel out = FileChannel.open(tmp, StandardOpenOption.WRITE)) {
+          out.force(true);
+        }
+        Files.move(tmp, target, StandardCopyOption.ATOMIC_MOVE,
+            StandardCopyOption.REPLACE_EXISTING);
+      }
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
+  }
+
+  /**
+   * drop the image of an aborted collage, the side file is deleted once it is no longer used and
+   * its write is over
+   */
+  public void discard(String hash) {
+    CompletableFuture<Void> write;
+    synchronized (this) {
+      write = written.get(hash);
+      if (!release(hash))
+        return;
+    }
+    if (write == null)
+      deleteUnused(hash);
+    else
+      write.whenComplete((result, error) -> deleteUnused(hash));
+  }
+
+  /** delete a side file unless a new commit has started using the image again in the meantime */
+  private synchronized void deleteUnused(String hash) {
+    try {
+      if (!refs.containsKey(hash))
+        Files.deleteIfExists(locate(hash));
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
+  }
+
+  /** delete side files not used by any commit, e.g. left over by a crash before they were logged */
+  public synchronized void sweep() {
+    try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+      for (Path file : files) {
+        if (!refs.containsKey(file.getFileName().toString()))
+          Files.deleteIfExists(file);
+      }
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
+  }
+}
@@ -0,0 +1,40 @@
+/*
+ * @file   LockManager.java
+ *
+ * Lock manager of the files on a user node, built on the lock table of the Slave. Locks are not
+ * logged: after a crash they are restored from the yes votes of undecided commits and the commits
+ * whose sources are still to be deleted. All files of a commit are acquired atomically: either
+ * every one of them is locked for the commit, or none is. It is only called under the lock of the
+ * user node, which is what makes an acquisition atomic.
+ */
+
+import java.util.concurrent.ConcurrentHashMap;
+
+public class LockManager {
+  private final ConcurrentHashMap<String, Integer> table; // file -> commit holding its lock
+
+  public LockManager(ConcurrentHashMap<String, Integer> table) {
+    this.table = table;
+  }
+
+  /** check whether a resource on the user node is already locked by another commit */
+  public boolean isLocked(String source, int cid) {
+    Integer holder = table.get(source);
+    return holder != null && holder != cid;
+  }
+
+  /** lock all resources of a commit at once, returns false and locks nothing on any conflict */
+  public boolean acquireAll(String[] sources, int cid) {
+    for (String source : sources) {
+      if (isLocked(source, cid))
+        return false;
+    }
+    for (String source : sources) table.put(source, cid);
+    return true;
+  }
+
+  /** unlock all resources previously locked by a commit */
+  public void releaseAll(String[] sources, int cid) {
+    for (String source : sources) table.remove(source, cid);
+  }
+}
@@ -0,0 +1,156 @@
+/*
+ * @file   LogRecord.java
+ *
+ * A single typed record in the append-only write-ahead log. Instead of snapshotting the whole
+ * Coordinator or Slave on every state change, a node appends one small record describing the
+ * change. On the server:
+ *
+ * BEGIN -> a new commit is created (filename, sources and the hash of the image)
+ * VOTE -> a vote from a user is received
+ * DECISION -> the prepare stage is over and the commit decision is made
+ * ACK -> an ack to the decision is received from a user
+ * END -> all acks are received and the commit is finished
+ * CHECKPOINT -> head of a compacted log, carries the next commit id
+ *
+ * and on a user node:
+ *
+ * VOTED -> the user voted on a proposal, with the sources it locked for a yes vote
+ * DECISION -> the decision of the server is received
+ * DELETED -> the sources of a committed collage are deleted
+ * CHECKPOINT -> head of a compacted log, carries the watermark of the server
+ *
+ * Replaying the records in order rebuilds the Coordinator or the Slave.
+ */
+
+import java.io.*;
+
+public class LogRecord {
+  public enum Type { BEGIN, VOTE, DECISION, ACK, END, CHECKPOINT, VOTED, DELETED }
+
+  public final Type type;
+  public final int cid; // commit id, or next commit id or watermark for CHECKPOINT
+  public String addr; // user of a VOTE or ACK
+  public boolean flag; // vote of a VOTE or VOTED, or decision of a DECISION (true to commit)
+  public String filename; // file name of a BEGIN
+  public String[] sources; // sources of a BEGIN or VOTED
+  public String imgHash; // content hash of the image of a BEGIN, see ImageStore
+  public int imgLength; // image size of a BEGIN
+
+  private LogRecord(Type type, int cid) {
+    this.type = type;
+    this.cid = cid;
+  }
+
+  public static LogRecord begin(
+      int cid, String filename, String imgHash, int imgLength, String[] sources) {
+    LogRecord rec = new LogRecord(Type.BEGIN, cid);
+    rec.filename = filename;
+    rec.imgHash = imgHash;
+    rec.imgLength = imgLength;
+    rec.sources = sources;
+    return rec;
+  }
+
+  public static LogRecord vote(int cid, String addr, boolean vote) {
+    LogRecord rec = new LogRecord(Type.VOTE, cid);
+    rec.addr = addr;
+    rec.flag = vote;
+    return rec;
+  }
+
+  public static LogRecord voted(int cid, String[] sources, boolean vote) {
+    LogRecord rec = new LogRecord(Type.VOTED, cid);
+    rec.sources = sources;
+    rec.flag = vote;
+    return rec;
+  }
+
+  public static LogRecord deleted(int cid) {
+    return new LogRecord(Type.DELETED, cid);
+  }
+
+  public static LogRecord decision(int cid, boolean canCommit) {
+    LogRecord rec = new LogRecord(Type.DECISION, cid);
+    rec.flag = canCommit;
+    return rec;
+  }
+
+  public static LogRecord ack(int cid, String addr) {
+    LogRecord rec = new LogRecord(Type.ACK, cid);
+    rec.addr = addr;
+    return rec;
+  }
+
+  public static LogRecord end(int cid) {
+    return new LogRecord(Type.END, cid);
+  }
+
+  public static LogRecord checkpoint(int nextId) {
+    return new LogRecord(Type.CHECKPOINT, nextId);
+  }
+
+  /** serialize the record payload, framing is left to the WriteAheadLog */
+  public void writeTo(DataOutput out) throws IOException {
+    out.writeByte(type.ordinal());
+    out.writeInt(cid);
+    switch (type) {
+      case BEGIN:
+        out.writeUTF(filename);
+        out.writeInt(sources.length);
+        for (String source : sources) out.writeUTF(source);
+        out.writeUTF(imgHash);
+        out.writeInt(imgLength);
+        break;
+      case VOTE:
+        out.writeUTF(addr);
+        out.writeBoolean(flag);
+        break;
+      case DECISION:
+        out.writeBoolean(flag);
+        break;
+      case ACK:
+        out.writeUTF(addr);
+        break;
+      case VOTED:
+        out.writeInt(sources.length);
+        for (String source : sources) out.writeUTF(source);
+        out.writeBoolean(flag);
+        break;
+      default:
+        break;
+    }
+  }
+
+  /** static function to deserialize a record payload written by writeTo() */
+  public static LogRecord readFrom(DataInput in) throws IOException {
+    Type type = Type.values()[in.readByte()];
+    LogRecord rec = new LogRecord(type, in.readInt());
+    switch (type) {
+      case BEGIN:
+        rec.filename = in.readUTF();
+        rec.sources = new String[in.readInt()];
+        for (int i = 0; i < rec.sources.length; i++) rec.sources[i] = in.readUTF();
+        rec.imgHash = in.readUTF();
+        rec.imgLength = in.readInt();
+        break;
+      case VOTE:
+        rec.addr = in.readUTF();
+        rec.flag = in.readBoolean();
+        break;
+      case DECISION:
+        rec.flag = in.readBoolean();
+        break;
+      case ACK:
+        rec.addr = in.readUTF();
+        break;
+      case VOTED:
+        rec.sources = new String[in.readInt()];
+        for (int i = 0; i < rec.sources.length; i++) rec.sources[i] = in.readUTF();
+        rec.flag = in.readBoolean();
+        break;
+      default:
+        break;
+    }
+    return rec;
+  }
+}
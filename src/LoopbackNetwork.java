@@ -0,0 +1,79 @@
+/*
+ * @file   LoopbackNetwork.java
+ *
+ * In-memory stand-in for ProjectLib that connects nodes running in the same JVM. A message is
+ * handed to its destination as is, without copying its bytes, after a delay on a pool of threads,
+ * unless it is dropped with a given probability. The delay is a fixed part plus a random jitter,
+ * which reorders messages that are sent close together. An fsync takes a fixed time, and users
+ * approve every proposal.
+ */
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+public class LoopbackNetwork {
+  private final long delay; // one-way delay of a message in microseconds
+  private final long jitter; // random extra delay of a message in microseconds, reorders them
+  private final double dropRate; // probability that a message is lost
+  private final long fsyncLatency; // duration of an fsync in microseconds
+  private final ConcurrentHashMap<String, ProjectLib.MessageHandling> nodes;
+  private final ScheduledExecutorService pool;
+  public final LongAdder sent; // messages sent by any node
+  public final LongAdder dropped; // messages lost on the way
+
+  public LoopbackNetwork(long delay, long jitter, double dropRate, long fsyncLatency, int threads) {
+    this.delay = delay;
+    this.jitter = jitter;
+    this.dropRate = dropRate;
+    this.fsyncLatency = fsyncLatency;
+    this.nodes = new ConcurrentHashMap<>();
+    this.pool = Executors.newScheduledThreadPool(threads, r -> {
+      Thread t = new Thread(r, "network");
+      t.setDaemon(true);
+      return t;
+    });
+    this.sent = new LongAdder();
+    this.dropped = new LongAdder();
+  }
+
+  /** connect a node to the network under an address and return its transport */
+  public Transport attach(String addr, ProjectLib.MessageHandling node) {
+    nodes.put(addr, node);
+    return new Transport() {
+      public void sendMessage(ProjectLib.Message msg) {
+        deliver(addr, msg);
+      }
+
+      public void fsync() {
+        if (fsyncLatency > 0)
+          LockSupport.parkNanos(fsyncLatency * 1000);
+      }
+
+      public boolean askUser(byte[] img, String[] sources) {
+        return true;
+      }
+    };
+  }
+
+  /** deliver a message to its destination, where its address is replaced by the sender's */
+  private void deliver(String from, ProjectLib.Message msg) {
+    sent.increment();
+    if (dropRate > 0 && ThreadLocalRandom.current().nextDouble() < dropRate) {
+      dropped.increment();
+      return;
+    }
+    ProjectLib.MessageHandling node = nodes.get(msg.addr);
+    if (node == null)
+      return;
+    ProjectLib.Message received = new ProjectLib.Message(from, msg.body);
+    long after = delay + ((jitter > 0) ? ThreadLocalRandom.current().nextLong(jitter) : 0);
+    pool.schedule(() -> {
+      try {
+        node.deliverMessage(received);
+      } catch (Exception e) {
+        e.printStackTrace();
+      }
+    }, after, TimeUnit.MICROSECONDS);
+  }
+}
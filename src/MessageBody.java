@@ -14,11 +14,28 @@
  */
 
 import java.io.*;
+import java.util.*;
+import java.util.function.BiPredicate;
 
 public class MessageBody implements Serializable {
+  // the id of the baseline class, so messages of nodes running the baseline can still be read
+  private static final long serialVersionUID = -7631198485922451314L;
   public static final String SERVER = "Server";
-  public static final long TIMEOUT = 6000;
+  public static final long TIMEOUT = Long.getLong("twopc.timeout", 6000);
+  /**
+   * messages are sent in the compact binary format of MessageCodec, unless the legacy Java
+   * serialization is selected with -Dtwopc.codec=java; both formats are accepted on receipt
+   */
+  public static final boolean LEGACY_CODEC = "java".equals(System.getProperty("twopc.codec"));
+  /**
+   * with -Dtwopc.presumedAbort=true, both sides run the presumed-abort variant of the protocol:
+   * abort decisions are neither forced to disk nor acknowledged, and a commit the server knows
+   * nothing about is presumed aborted. Users that voted yes and hear nothing ask again by resending
+   * their vote. All nodes must run in the same mode.
+   */
+  public static final boolean PRESUMED_ABORT = Boolean.getBoolean("twopc.presumedAbort");
 
+  public MessageType type; // type of the message
   public int cid; // commit id
   public byte[] img; // image contents
   public String[] sources; // image sources
@@ -27,20 +44,36 @@ public class MessageBody implements Serializable {
   public Decision decision; // commit decision
   public long sendTime; // timestamp when the message is sent, used only on the server
   public String dest; // destination of the message
+  public int imgLength; // size of the whole image of a prepare, which may come in chunks
+  public int offset; // position of a chunk in the image
+  public int watermark; // every commit below it has ended on the server, set by the server only
 
   /* prepare message from server to users */
   public MessageBody(int cid, String dest, byte[] img, String[] sources, long sendTime) {
     this.cid = cid;
+    this.type = MessageType.PREPARE;
     this.dest = dest;
     this.isPrepare = true;
     this.img = img;
+    this.imgLength = img.length;
     this.sources = sources;
     this.sendTime = sendTime;
   }
 
+  /* chunk of the image of a prepare, as received by a user */
+  public MessageBody(int cid, int imgLength, int offset, byte[] data) {
+    this.cid = cid;
+    this.type = MessageType.CHUNK;
+    this.isPrepare = true;
+    this.imgLength = imgLength;
+    this.offset = offset;
+    this.img = data;
+  }
+
   /* commit stage message from server to users */
   public MessageBody(int cid, String dest, String[] sources, Decision decision, long sendTime) {
     this.cid = cid;
+    this.type = MessageType.DECISION;
     this.dest = dest;
     this.isPrepare = false;
     this.sources = sources;
@@ -51,6 +84,7 @@ public class MessageBody implements Serializable {
   /* vote from users to server */
   public MessageBody(int cid, boolean vote) {
     this.cid = cid;
+    this.type = MessageType.VOTE;
     this.dest = SERVER;
     this.vote = vote;
     this.isPrepare = true;
@@ -59,36 +93,100 @@ public class MessageBody implements Serializable {
   /* ack from users to server */
   public MessageBody(int cid) {
     this.cid = cid;
+    this.type = MessageType.ACK;
     this.dest = SERVER;
     this.isPrepare = false;
   }
 
-  /** check whether a message on the server side has timed out */
-  public boolean isExpired(long curTime) {
-    return curTime - this.sendTime >= TIMEOUT;
-  }
-
-  /** update the message sent time, used when the server resend a expired message*/
-  public void updateTime(long time) {
-    this.sendTime = time;
+  /**
+   * read a message in the legacy Java serialization format. The baseline format has no type, which
+   * is then told from the other fields like the baseline did.
+   */
+  private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+    in.defaultReadObject();
+    if (type != null)
+      return;
+    if (isPrepare)
+      type = SERVER.equals(dest) ? MessageType.VOTE : MessageType.PREPARE;
+    else
+      type = (decision != null) ? MessageType.DECISION : MessageType.ACK;
+    if (type == MessageType.PREPARE && img != null)
+      imgLength = img.length;
   }
 
-  /** serialize a message and send it to destination */
-  public void sendMessageBody(ProjectLib PL) {
+  /** serialize a message in the legacy Java serialization format */
+  public byte[] serialize() throws IOException {
     try (ByteArrayOutputStream b = new ByteArrayOutputStream();
          ObjectOutputStream o = new ObjectOutputStream(b)) {
       o.writeObject(this);
+      o.flush();
+      return b.toByteArray();
+    }
+  }
+
+  /** serialize a message and send it to destination */
+  public void sendMessageBody(Transport PL) {
+    try {
+      byte[] bytes = LEGACY_CODEC ? serialize() : MessageCodec.encode(this);
       // encapsulate as a ProjectLib.Message and send using PL.sendMessage()
-      ProjectLib.Message msg = new ProjectLib.Message(this.dest, b.toByteArray());
+      ProjectLib.Message msg = new ProjectLib.Message(this.dest, bytes);
       PL.sendMessage(msg);
     } catch (Exception e) {
       e.printStackTrace();
     }
   }
 
-  /** static function to deserialize a message */
+  /**
+   * serialize replies to the same destination and send them together, in one envelope unless the
+   * legacy format is used
+   */
+  public static void sendMessageBodies(Transport PL, String dest, List<MessageBody> bodies) {
+    if (bodies.isEmpty())
+      return;
+    if (LEGACY_CODEC || bodies.size() == 1) {
+      for (MessageBody body : bodies) body.sendMessageBody(PL);
+      return;
+    }
+    List<byte[]> encoded = new ArrayList<>();
+    for (MessageBody body : bodies) encoded.add(MessageCodec.encode(body));
+    PL.sendMessage(new ProjectLib.Message(dest, MessageCodec.encodeBatch(encoded)));
+  }
+
+  /** static function to deserialize a single message or an envelope of messages */
+  public static List<MessageBody> deserializeAll(byte[] bytes) {
+    return deserializeAll(bytes, (type, cid) -> true);
+  }
+
+  /**
+   * deserialize only the messages whose type and commit id are wanted. In the binary format the
+   * header of each message is checked before its payload is decoded; a message in the legacy format
+   * has to be deserialized first.
+   */
+  public static List<MessageBody> deserializeAll(
+      byte[] bytes, BiPredicate<MessageType, Integer> wanted) {
+    if (MessageCodec.isBinary(bytes)) {
+      try {
+        return MessageCodec.decodeAll(bytes, wanted);
+      } catch (Exception e) {
+        e.printStackTrace();
+        return List.of();
+      }
+    }
+    MessageBody body = deserialize(bytes);
+    return (body == null || !wanted.test(body.type, body.cid)) ? List.of() : List.of(body);
+  }
+
+  /** static function to deserialize a message in either format */
   public static MessageBody deserialize(byte[] bytes) {
     MessageBody body = null;
+    if (MessageCodec.isBinary(bytes)) {
+      try {
+        body = MessageCodec.decode(bytes);
+      } catch (Exception e) {
+        e.printStackTrace();
+      }
+      return body;
+    }
     try (ByteArrayInputStream b = new ByteArrayInputStream(bytes);
          ObjectInputStream o = new ObjectInputStream(b)) {
       body = (MessageBody) o.readObject();
@@ -0,0 +1,291 @@
+/*
+ * @file   MessageCodec.java
+ *
+ * Compact binary wire format of a MessageBody, used instead of Java serialization. A message is
+ * encoded as
+ *
+ * [version][type][cid as varint][payload]
+ *
+ * where the payload depends on the type of the message:
+ *
+ * PREPARE -> [watermark][number of sources][sources][image length][inline length][raw image bytes]
+ * VOTE -> [vote]
+ * DECISION -> [watermark][number of sources][sources][decision]
+ * ACK -> (empty)
+ * CHUNK -> [image length][offset][chunk length][raw chunk bytes]
+ *
+ * The image of a prepare is inline unless it is large, in which case the inline length is 0 and
+ * the image follows in chunks that are encoded straight from the image, without copying it first.
+ *
+ * The watermark, counts and lengths are varints and sources are length-prefixed UTF-8 strings.
+ * The first byte of a Java serialization stream is never a valid version, so both formats can be
+ * told apart on receipt.
+ *
+ * Several messages to the same destination can be packed into one envelope
+ *
+ * [version][BATCH][number of messages][message][message]...
+ *
+ * where each message is encoded as above, so it is self-delimiting.
+ */
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.function.BiPredicate;
+
+public class MessageCodec {
+  public static final byte VERSION = 3;
+  public static final byte BATCH = 0x10; // type tag of an envelope, distinct from any MessageType
+
+  /** whether a message is in the binary format, as opposed to the legacy Java serialization */
+  public static boolean isBinary(byte[] bytes) {
+    return bytes.length > 0 && bytes[0] == VERSION;
+  }
+
+  private static int varintSize(int value) {
+    int size = 1;
+    while ((value & ~0x7F) != 0) {
+      value >>>= 7;
+      size++;
+    }
+    return size;
+  }
+
+  private static void putVarint(ByteBuffer buf, int value) {
+    while ((value & ~0x7F) != 0) {
+      buf.put((byte) ((value & 0x7F) | 0x80));
+      value >>>= 7;
+    }
+    buf.put((byte) value);
+  }
+
+  private static int getVarint(ByteBuffer buf) {
+    int value = 0;
+    for (int shift = 0; shift < 32; shift += 7) {
+      byte b = buf.get();
+      value |= (b & 0x7F) << shift;
+      if ((b & 0x80) == 0)
+        return value;
+    }
+    throw new IllegalArgumentException("malformed varint");
+  }
+
+  private static byte[][] utf8(String[] sources) {
+    byte[][] result = new byte[sources.length][];
+    for (int i = 0; i < sources.length; i++)
+      result[i] = sources[i].getBytes(StandardCharsets.UTF_8);
+    return result;
+  }
+
+  private static int sourcesSize(byte[][] sources) {
+    int size = varintSize(sources.length);
+    for (byte[] source : sources) size += varintSize(source.length) + source.length;
+    return size;
+  }
+
+  private static void putSources(ByteBuffer buf, byte[][] sources) {
+    putVarint(buf, sources.length);
+    for (byte[] source : sources) {
+      putVarint(buf, source.length);
+      buf.put(source);
+    }
+  }
+
+  private static String[] getSources(ByteBuffer buf) {
+    String[] sources = new String[getVarint(buf)];
+    for (int i = 0; i < sources.length; i++) {
+      int len = getVarint(buf);
+      sources[i] = new String(buf.array(), buf.arrayOffset() + buf.position(), len,
+          StandardCharsets.UTF_8);
+      buf.position(buf.position() + len);
+    }
+    return sources;
+  }
+
+  /** encode a message into a buffer of exactly its encoded size */
+  public static byte[] encode(MessageBody body) {
+    byte[][] sources = (body.sources == null) ? new byte[0][] : utf8(body.sources);
+    int size = 2 + varintSize(body.cid);
+    switch (body.type) {
+      case PREPARE:
+        size += varintSize(body.watermark) + sourcesSize(sources) + varintSize(body.imgLength)
+            + varintSize(body.img.length) + body.img.length;
+        break;
+      case VOTE:
+        size += 1;
+        break;
+      case DECISION:
+        size += varintSize(body.watermark) + sourcesSize(sources) + 1;
+        break;
+      default:
+        break;
+    }
+    ByteBuffer buf = ByteBuffer.wrap(new byte[size]);
+    buf.put(VERSION);
+    buf.put((byte) body.type.ordinal());
+    putVarint(buf, body.cid);
+    switch (body.type) {
+      case PREPARE:
+        putVarint(buf, body.watermark);
+        putSources(buf, sources);
+        putVarint(buf, body.imgLength);
+        putVarint(buf, body.img.length);
+        buf.put(body.img);
+        break;
+      case VOTE:
+        buf.put((byte) (body.vote ? 1 : 0));
+        break;
+      case DECISION:
+        putVarint(buf, body.watermark);
+        putSources(buf, sources);
+        buf.put((byte) body.decision.ordinal());
+        break;
+      default:
+        break;
+    }
+    return buf.array();
+  }
+
+  /** encode a chunk of the image of a prepare, read straight from the image */
+  public static byte[] encodeChunk(int cid, byte[] img, int offset, int length) {
+    int size = 2 + varintSize(cid) + varintSize(img.length) + varintSize(offset)
+        + varintSize(length) + length;
+    ByteBuffer buf = ByteBuffer.wrap(new byte[size]);
+    buf.put(VERSION);
+    buf.put((byte) MessageType.CHUNK.ordinal());
+    putVarint(buf, cid);
+    putVarint(buf, img.length);
+    putVarint(buf, offset);
+    putVarint(buf, length);
+    buf.put(img, offset, length);
+    return buf.array();
+  }
+
+  /** pack already encoded messages into one envelope, a single message is sent as is */
+  public static byte[] encodeBatch(List<byte[]> messages) {
+    if (messages.size() == 1)
+      return messages.get(0);
+    int size = 2 + varintSize(messages.size());
+    for (byte[] message : messages) size += message.length;
+    ByteBuffer buf = ByteBuffer.wrap(new byte[size]);
+    buf.put(VERSION);
+    buf.put(BATCH);
+    putVarint(buf, messages.size());
+    for (byte[] message : messages) buf.put(message);
+    return buf.array();
+  }
+
+  /** decode a single message or all messages of an envelope in the binary format */
+  public static List<MessageBody> decodeAll(byte[] bytes) {
+    return decodeAll(bytes, (type, cid) -> true);
+  }
+
+  /**
+   * decode a single message or the messages of an envelope, but only those whose type and commit id
+   * in the header are wanted; the payload of the others, e.g. an image, is skipped without copying
+   */
+  public static List<MessageBody> decodeAll(
+      byte[] bytes, BiPredicate<MessageType, Integer> wanted) {
+    ByteBuffer buf = ByteBuffer.wrap(bytes);
+    int count = 1;
+    if (bytes.length >= 2 && bytes[1] == BATCH) {
+      buf.position(2);
+      count = getVarint(buf);
+    }
+    List<MessageBody> result = new ArrayList<>(count);
+    for (int i = 0; i < count; i++) {
+      byte version = buf.get();
+      if (version != VERSION)
+        throw new IllegalArgumentException("unsupported message version " + version);
+      MessageType type = MessageType.values()[buf.get()];
+      int cid = getVarint(buf);
+      if (wanted.test(type, cid))
+        result.add(decodePayload(buf, type, cid));
+      else
+        skipPayload(buf, type);
+    }
+    return result;
+  }
+
+  /** decode a message in the binary format, reading straight from the received buffer */
+  public static MessageBody decode(byte[] bytes) {
+    return decode(ByteBuffer.wrap(bytes));
+  }
+
+  /** decode the message starting at the position of a buffer and move past it */
+  private static MessageBody decode(ByteBuffer buf) {
+    byte version = buf.get();
+    if (version != VERSION)
+      throw new IllegalArgumentException("unsupported message version " + version);
+    MessageType type = MessageType.values()[buf.get()];
+    int cid = getVarint(buf);
+    return decodePayload(buf, type, cid);
+  }
+
+  /** decode the payload of a message once its header is read */
+  private static MessageBody decodePayload(ByteBuffer buf, MessageType type, int cid) {
+    switch (type) {
+      case PREPARE: {
+        int watermark = getVarint(buf);
+        String[] sources = getSources(buf);
+        int imgLength = getVarint(buf);
+        byte[] img = new byte[getVarint(buf)];
+        buf.get(img);
+        MessageBody body = new MessageBody(cid, null, img, sources, 0);
+        body.watermark = watermark;
+        body.imgLength = imgLength;
+        return body;
+      }
+      case VOTE:
+        return new MessageBody(cid, buf.get() != 0);
+      case DECISION: {
+        int watermark = getVarint(buf);
+        String[] sources = getSources(buf);
+        MessageBody body = new MessageBody(cid, null, sources, Decision.values()[buf.get()], 0);
+        body.watermark = watermark;
+        return body;
+      }
+      case CHUNK: {
+        int imgLength = getVarint(buf);
+        int offset = getVarint(buf);
+        byte[] data = new byte[getVarint(buf)];
+        buf.get(data);
+        return new MessageBody(cid, imgLength, offset, data);
+      }
+      default:
+        return new MessageBody(cid);
+    }
+  }
+
+  /** move past the payload of a message once its header is read */
+  private static void skipPayload(ByteBuffer buf, MessageType type) {
+    switch (type) {
+      case PREPARE:
+        getVarint(buf);
+        skipSources(buf);
+        getVarint(buf);
+        buf.position(buf.position() + getVarint(buf));
+        break;
+      case VOTE:
+        buf.get();
+        break;
+      case DECISION:
+        getVarint(buf);
+        skipSources(buf);
+        buf.get();
+        break;
+      case CHUNK:
+        getVarint(buf);
+        getVarint(buf);
+        buf.position(buf.position() + getVarint(buf));
+        break;
+      default:
+        break;
+    }
+  }
+
+  private static void skipSources(ByteBuffer buf) {
+    int count = getVarint(buf);
+    for (int i = 0; i < count; i++) buf.position(buf.position() + getVarint(buf));
+  }
+}
@@ -0,0 +1,14 @@
+/*
+ * @file   MessageType.java
+ *
+ * Enum for the types of messages in the two-phase-commit protocol
+ *
+ * PREPARE -> proposal from the server to a user
+ * VOTE -> reply to a proposal from a user to the server
+ * DECISION -> commit decision from the server to a user
+ * ACK -> acknowledgement of a decision from a user to the server
+ * CHUNK -> piece of the image of a large proposal, sent along with the proposal itself
+ */
+import java.io.Serializable;
+
+public enum MessageType implements Serializable { PREPARE, VOTE, DECISION, ACK, CHUNK }
\ No newline at end of file
@@ -0,0 +1,200 @@
+/*
+ * @file   Metrics.java
+ *
+ * Lightweight instrumentation of a node: counters, gauges, latency histograms and a trace of the
+ * state transitions of each commit. Recording never allocates: counters are LongAdders, histograms
+ * have fixed log-linear buckets in the style of HdrHistogram, and trace records go into a ring
+ * buffer of primitive arrays that keeps the most recent ones. With -Dtwopc.metrics=<period in ms>,
+ * the node writes a text dump of its metrics to metrics.txt in its directory every period, and
+ * appends the trace records of the period to twopc-<node>-trace.log in -Dtwopc.traceDir (the
+ * temporary directory by default). The trace grows for as long as the node runs, so it is kept out
+ * of the node directory, which only holds the durable state of the node.
+ */
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.atomic.*;
+import java.util.function.LongSupplier;
+
+public class Metrics {
+  public static final long PERIOD = Long.getLong("twopc.metrics", 0); // 0 disables the dumps
+  public static final int TRACE_SIZE = 1 << 16; // trace records kept in memory
+  public static final String TRACE_DIR =
+      System.getProperty("twopc.traceDir", System.getProperty("java.io.tmpdir"));
+
+  /** state transitions of a commit recorded in the trace */
+  public enum Event { BEGIN, PREPARE, VOTE_YES, VOTE_NO, COMMIT, ABORT, ACK, TIMEOUT, END }
+
+  /**
+   * Latency histogram with 16 linear sub-buckets per power of two, i.e. a relative error of at most
+   * 1/16, recorded in microseconds.
+   */
+  public static class Histogram {
+    private static final int BITS = 4;
+    private static final int SUB = 1 << BITS;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(64 * SUB);
+    private final LongAdder sum = new LongAdder();
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    private static int index(long value) {
+      if (value < SUB)
+        return (int) value;
+      int shift = 63 - Long.numberOfLeadingZeros(value) - BITS;
+      return (shift + 1) * SUB + (int) (value >>> shift) - SUB;
+    }
+
+    /** largest value falling into a bucket */
+    private static long highest(int index) {
+      if (index < SUB)
+        return index;
+      int shift = index / SUB - 1;
+      return ((long) (index % SUB + SUB + 1) << shift) - 1;
+    }
+
+    /** record a duration given in nanoseconds */
+    public void record(long nanos) {
+      long micros = Math.max(nanos / 1000, 0);
+      buckets.incrementAndGet(index(micros));
+      sum.add(micros);
+      max.accumulate(micros);
+    }
+
+    public long count() {
+      long count = 0;
+      for (int i = 0; i < buckets.length(); i++) count += buckets.get(i);
+      return count;
+    }
+
+    /** value below which the given fraction of the recorded values falls, in microseconds */
+    public long percentile(double p) {
+      long count = count();
+      long rank = (long) Math.ceil(p * count);
+      long seen = 0;
+      for (int i = 0; i < buckets.length(); i++) {
+        seen += buckets.get(i);
+        if (seen >= rank && seen > 0)
+          return Math.min(highest(i), max.get());
+      }
+      return 0;
+    }
+
+    public String toString() {
+      long count = count();
+      return String.format("count=%d mean=%d p50=%d p99=%d p999=%d max=%d", count,
+          count == 0 ? 0 : sum.sum() / count, percentile(0.5), percentile(0.99),
+          percentile(0.999), max.get());
+    }
+  }
+
+  private final String node;
+  private final Path dir;
+  private final LinkedHashMap<String, LongAdder> counters;
+  private final LinkedHashMap<String, LongSupplier> gauges;
+  private final LinkedHashMap<String, Histogram> histograms;
+  private final long baseNanos; // System.nanoTime() at baseMillis, to timestamp trace records
+  private final long baseMillis;
+  private final int[] traceCids; // ring buffer of trace records
+  private final byte[] traceEvents;
+  private final long[] traceTimes;
+  private final AtomicLong traced; // number of trace records so far
+  private long dumped; // number of trace records appended to the trace file so far
+
+  public Metrics(String node, Path dir) {
+    this.node = node;
+    this.dir = dir;
+    this.counters = new LinkedHashMap<>();
+    this.gauges = new LinkedHashMap<>();
+    this.histograms = new LinkedHashMap<>();
+    this.baseMillis = System.currentTimeMillis();
+    this.baseNanos = System.nanoTime();
+    this.traceCids = new int[TRACE_SIZE];
+    this.traceEvents = new byte[TRACE_SIZE];
+    this.traceTimes = new long[TRACE_SIZE];
+    this.traced = new AtomicLong();
+    if (PERIOD > 0) {
+      Thread t = new Thread(this::run, node + "-metrics");
+      t.setDaemon(true);
+      t.start();
+    }
+  }
+
+  /** register a counter, its handle is meant to be kept by the caller */
+  public synchronized LongAdder counter(String name) {
+    return counters.computeIfAbsent(name, key -> new LongAdder());
+  }
+
+  /** register a gauge, sampled only when the metrics are dumped */
+  public synchronized void gauge(String name, LongSupplier value) {
+    gauges.put(name, value);
+  }
+
+  /** register a latency histogram, its handle is meant to be kept by the caller */
+  public synchronized Histogram histogram(String name) {
+    return histograms.computeIfAbsent(name, key -> new Histogram());
+  }
+
+  /**
+   * record a state transition of a commit. The slot of a record may be overwritten while it is
+   * dumped once the ring buffer wraps around, which only garbles that record.
+   */
+  public void trace(int cid, Event event) {
+    int slot = (int) (traced.getAndIncrement() & (TRACE_SIZE - 1));
+    traceCids[slot] = cid;
+    traceEvents[slot] = (byte) event.ordinal();
+    traceTimes[slot] = System.nanoTime();
+  }
+
+  /** text dump of all metrics */
+  public synchronized String dump() {
+    StringBuilder sb = new StringBuilder();
+    sb.append("# ").append(node).append(" at ").append(System.currentTimeMillis()).append('\n');
+    counters.forEach((name, value) -> sb.append("counter ").append(name).append(' ')
+        .append(value.sum()).append('\n'));
+    gauges.forEach((name, value) -> sb.append("gauge ").append(name).append(' ')
+        .append(value.getAsLong()).append('\n'));
+    histograms.forEach((name, value) -> sb.append("histogram ").append(name).append("_us ")
+        .append(value).append('\n'));
+    return sb.toString();
+  }
+
+  /** trace records since the last call, one "<time in ms> <cid> <event>" line each */
+  private String drainTrace() {
+    long end = traced.get();
+    long start = Math.max(dumped, end - TRACE_SIZE);
+    StringBuilder sb = new StringBuilder();
+    for (long i = start; i < end; i++) {
+      int slot = (int) (i & (TRACE_SIZE - 1));
+      double millis = baseMillis + (traceTimes[slot] - baseNanos) / 1e6;
+      sb.append(String.format("%.3f %d %s%n", millis, traceCids[slot],
+          Event.values()[traceEvents[slot]]));
+    }
+    dumped = end;
+    return sb.toString();
+  }
+
+  private void run() {
+    Path tmp = dir.resolve("metrics.txt.tmp");
+    Path trace = Paths.get(TRACE_DIR, "twopc-" + node + "-trace.log");
+    try {
+      Files.createDirectories(trace.getParent());
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
+    while (true) {
+      try {
+        Thread.sleep(PERIOD);
+        Files.write(tmp, dump().getBytes());
+        Files.move(tmp, dir.resolve("metrics.txt"), StandardCopyOption.ATOMIC_MOVE,
+            StandardCopyOption.REPLACE_EXISTING);
+        Files.write(trace, drainTrace().getBytes(), StandardOpenOption.CREATE,
+            StandardOpenOption.APPEND);
+      } catch (InterruptedException e) {
+        return;
+      } catch (IOException e) {
+        e.printStackTrace();
+      }
+    }
+  }
+}
@@ -0,0 +1,33 @@
+/*
+ * @file   Outbox.java
+ *
+ * Replies and follow-up work produced on a user node while handling a batch of messages from the
+ * server. They are released together once the log updates made for the batch are durable, so the
+ * whole batch costs one log flush and is answered with one envelope.
+ */
+
+import java.util.ArrayList;
+
+public class Outbox {
+  public final ArrayList<MessageBody> replies; // replies to send back to the server
+  public final ArrayList<Runnable> actions; // work to do once the log is durable, before replying
+  public boolean logged; // whether the log was updated while handling the batch
+
+  public Outbox() {
+    this.replies = new ArrayList<>();
+    this.actions = new ArrayList<>();
+    this.logged = false;
+  }
+
+  /** queue a reply to the server */
+  public void reply(MessageBody body) {
+    replies.add(body);
+  }
+
+  /** record that the log was updated, with work that must wait until the update is durable */
+  public void log(Runnable action) {
+    logged = true;
+    if (action != null)
+      actions.add(action);
+  }
+}
@@ -0,0 +1,18 @@
+/*
+ * @file   Outstanding.java
+ *
+ * Bookkeeping of the last message the server sent to a user for a commit and has not yet seen
+ * answered: its armed timeout, when it was sent, and how many times it has been resent.
+ */
+
+public class Outstanding {
+  public final TimerWheel.Timeout timeout; // timeout armed for the message
+  public final long sendTime; // timestamp when the message is sent
+  public final int attempt; // 0 for the first transmission, incremented on every resend
+
+  public Outstanding(TimerWheel.Timeout timeout, long sendTime, int attempt) {
+    this.timeout = timeout;
+    this.sendTime = sendTime;
+    this.attempt = attempt;
+  }
+}
@@ -0,0 +1,25 @@
+/*
+ * @file   ProjectLibTransport.java
+ *
+ * Transport backed by ProjectLib, used when nodes run as separate processes under Project4.
+ */
+
+public class ProjectLibTransport implements Transport {
+  private final ProjectLib PL;
+
+  public ProjectLibTransport(ProjectLib PL) {
+    this.PL = PL;
+  }
+
+  public void sendMessage(ProjectLib.Message msg) {
+    PL.sendMessage(msg);
+  }
+
+  public void fsync() {
+    PL.fsync();
+  }
+
+  public boolean askUser(byte[] img, String[] sources) {
+    return PL.askUser(img, sources);
+  }
+}
@@ -0,0 +1,41 @@
+/*
+ * @file   Reassembly.java
+ *
+ * Image of a large proposal being put back together on a user node. The proposal and the chunks of
+ * its image may arrive in any order and more than once, when the server sends the proposal again,
+ * so each chunk is copied into place only the first time it is seen.
+ */
+
+import java.util.HashSet;
+
+public class Reassembly {
+  public MessageBody header; // the proposal itself, once it has arrived
+  public final byte[] img; // the image being filled in
+  private final HashSet<Integer> offsets; // positions of the chunks copied so far
+  private int received; // bytes copied so far
+
+  public Reassembly(int imgLength) {
+    this.img = new byte[imgLength];
+    this.offsets = new HashSet<>();
+    this.received = 0;
+  }
+
+  /** copy a chunk of the image into place, unless it was seen before */
+  public void add(MessageBody chunk) {
+    if (chunk.offset + chunk.img.length > img.length || !offsets.add(chunk.offset))
+      return;
+    System.arraycopy(chunk.img, 0, img, chunk.offset, chunk.img.length);
+    received += chunk.img.length;
+  }
+
+  /** whether both the proposal and its whole image have arrived */
+  public boolean complete() {
+    return header != null && received == img.length;
+  }
+
+  /** the proposal with its whole image */
+  public MessageBody proposal() {
+    header.img = img;
+    return header;
+  }
+}
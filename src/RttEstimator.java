@@ -0,0 +1,64 @@
+/*
+ * @file   RttEstimator.java
+ *
+ * Round-trip time estimator of one destination, in the style of TCP (RFC 6298). It keeps a
+ * smoothed round-trip time and its mean deviation, and derives the timeout of the next message
+ * from them, so that consistently slow nodes get a longer timeout and fast nodes a shorter one,
+ * but never shorter than the floor of the estimator. Until the first sample arrives, the fixed
+ * MessageBody.TIMEOUT is used. For retransmissions, the timeout is doubled on every attempt up to a
+ * cap and randomized, so that resends to a node that is down do not flood it and resends to many
+ * nodes do not synchronize.
+ */
+
+import java.util.concurrent.ThreadLocalRandom;
+
+public class RttEstimator {
+  public static final long MIN_TIMEOUT = Long.getLong("twopc.minTimeout", 1000);
+  public static final long MAX_TIMEOUT = Long.getLong("twopc.maxTimeout", 60000);
+
+  private final long floor; // shortest timeout ever returned
+  private double srtt; // smoothed round-trip time
+  private double rttvar; // mean deviation of the round-trip time
+  private boolean sampled; // whether a sample has been received yet
+
+  public RttEstimator() {
+    this(MIN_TIMEOUT);
+  }
+
+  /** @param floor  shortest timeout, however fast the destination has answered so far */
+  public RttEstimator(long floor) {
+    this.floor = floor;
+    this.sampled = false;
+  }
+
+  /** update the estimate with the round-trip time of a message that was not retransmitted */
+  public synchronized void sample(long rtt) {
+    if (!sampled) {
+      srtt = rtt;
+      rttvar = rtt / 2.0;
+      sampled = true;
+    } else {
+      rttvar = 0.75 * rttvar + 0.25 * Math.abs(srtt - rtt);
+      srtt = 0.875 * srtt + 0.125 * rtt;
+    }
+  }
+
+  /** timeout of a message sent for the first time */
+  public synchronized long timeout() {
+    if (!sampled)
+      return MessageBody.TIMEOUT;
+    long rto = (long) Math.ceil(srtt + 4 * rttvar);
+    return Math.min(Math.max(rto, floor), MAX_TIMEOUT);
+  }
+
+  /**
+   * timeout of the given retransmission of a message, doubled on every attempt up to MAX_TIMEOUT
+   * and randomized between half and all of that value
+   */
+  public long backoff(int attempt) {
+    long timeout = timeout();
+    for (int i = 0; i < attempt && timeout < MAX_TIMEOUT; i++) timeout *= 2;
+    timeout = Math.min(timeout, MAX_TIMEOUT);
+    return timeout / 2 + ThreadLocalRandom.current().nextLong(timeout / 2 + 1);
+  }
+}
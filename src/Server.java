@@ -3,27 +3,107 @@
  * @author Tengda Wang <tengdaw@andrew.cmu.edu>
  *
  * A server that coordinate and perform two-phase-commits on candiate collage images. It is robust
- * to message lost and node failures, and able to process multiple commits concurrently.
+ * to message lost and node failures, and able to process multiple commits concurrently. Several
+ * servers can also run as shards behind a ShardedServer, each owning its own log, image store and
+ * timers, in which case the name of its log and image directory carries its shard number.
  */
 
 import java.io.*;
 import java.lang.Thread;
+import java.nio.file.*;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.function.IntSupplier;
 
 public class Server implements ProjectLib.MessageHandling, ProjectLib.CommitServing {
-  public static final long COOLDOWN = 1500; // interval of garbage collection thread
+  public static final long TICK = 50; // granularity of the timeout scheduler in milliseconds
+  public static final int WHEEL_SIZE = 512; // number of ticks in one rotation of the timer wheel
   public static final String LOG = "server_WAL"; // log file name
+  public static final int CHUNK = Integer.getInteger("twopc.chunk", 1 << 20); // in bytes
 
   public Coordinator coordinator; // log coordinator
-  public ConcurrentLinkedQueue<MessageBody>
-      queue; // global queue to store all messages sent in order to track timeout
-  public static ProjectLib PL; // static ProjectLib object to send/receive message
-  public boolean ready; // whether the recovery phase is completed
+  public WriteAheadLog log; // append-only write ahead log of the coordinator
+  public GroupCommitter committer; // batches log syncs across concurrent commits
+  public ImageStore images; // side files of the collage images, referenced by content hash
+  public StripedExecutor stripes; // runs the messages of one commit at a time, commits in parallel
+  public TimerWheel timers; // tracks the timeout of every outstanding message
+  public Batcher batcher; // packs messages to the same user into one envelope
+  public ConcurrentHashMap<String, RttEstimator>
+      rtts; // round-trip time estimate of each user, separately for each stage
+  public Transport PL; // sends and receives messages, syncs files to disk
+  public final Path dir; // working directory holding the log, images and collages
+  public final int shard; // number of this shard, 0 for a standalone server
+  public final int shards; // total number of shards, 1 for a standalone server
+  public final String suffix; // appended to the names of the log and image directory of a shard
+  public IntSupplier watermark; // low watermark told to the users, every commit below it ended
+  public final CountDownLatch ready; // released once the recovery phase is completed
+  public Consumer<CoordinatorEntry> onFinish; // notified whenever a commit ends, may be null
+  public final Metrics metrics; // counters, latencies and trace of the commits
+  private final LongAdder started; // commits started
+  private final LongAdder committed; // commits ended with a commit decision
+  private final LongAdder aborted; // commits ended with an abort decision
+  private final LongAdder votes; // votes received in the PREPARE stage
+  private final LongAdder acks; // ACKs received in the COMMIT stage
+  private final LongAdder timeouts; // messages that timed out
+  private final Metrics.Histogram appendTime; // encoding and writing a record to the log
+  private final Metrics.Histogram syncTime; // one sync of the log, including any checkpoint
+  private final Metrics.Histogram flushTime; // from appending a record until it is durable
+  private final Metrics.Histogram prepareTime; // PREPARE stage of a commit
+  private final Metrics.Histogram commitTime; // COMMIT stage of a commit
 
   public Server() {
-    queue = new ConcurrentLinkedQueue<>();
-    ready = false;
+    this(Paths.get(""));
+  }
+
+  public Server(Path dir) {
+    this(dir, 0, 1, new Metrics(MessageBody.SERVER, dir));
+  }
+
+  /**
+   * Server acting as one of several shards, which share a directory and metrics
+   * @param shard    number of this shard
+   * @param shards   total number of shards, 1 for a standalone server
+   * @param metrics  metrics of the node, shared by the shards
+   */
+  public Server(Path dir, int shard, int shards, Metrics metrics) {
+    this.dir = dir;
+    this.shard = shard;
+    this.shards = shards;
+    this.suffix = (shards > 1) ? "." + shard : "";
+    this.watermark = () -> coordinator.lowWatermark();
+    timers = new TimerWheel(TICK, WHEEL_SIZE, "server-timer" + suffix);
+    rtts = new ConcurrentHashMap<>();
+    batcher = new Batcher(Batcher.LINGER, Batcher.MAX_BATCH,
+        (dest, bytes) -> PL.sendMessage(new ProjectLib.Message(dest, bytes)));
+    committer = new GroupCommitter(this::sync);
+    int threads = Integer.getInteger("twopc.stripes", Runtime.getRuntime().availableProcessors());
+    stripes = new StripedExecutor(Math.max(1, threads / shards), "server" + suffix);
+    ready = new CountDownLatch(1);
+    this.metrics = metrics;
+    started = metrics.counter("commits.started");
+    committed = metrics.counter("commits.committed");
+    aborted = metrics.counter("commits.aborted");
+    votes = metrics.counter("votes");
+    acks = metrics.counter("acks");
+    timeouts = metrics.counter("timeouts");
+    metrics.gauge("commits.propose" + suffix, () -> countStage(Stage.PROPOSE));
+    metrics.gauge("commits.commit" + suffix, () -> countStage(Stage.COMMIT));
+    appendTime = metrics.histogram("log.append");
+    syncTime = metrics.histogram("log.sync");
+    flushTime = metrics.histogram("log.flush");
+    prepareTime = metrics.histogram("stage.prepare");
+    commitTime = metrics.histogram("stage.commit");
+  }
+
+  /** number of commits in progress in a stage, sampled for the metrics */
+  private long countStage(Stage stage) {
+    Coordinator current = coordinator;
+    if (current == null)
+      return 0;
+    return current.info.values().stream().filter(entry -> entry.stage == stage).count();
   }
 
   /** Static helper function to convert ArrayList<String> to string array */
@@ -33,71 +113,304 @@ public class Server implements ProjectLib.MessageHandling, ProjectLib.CommitServ
     return result;
   }
 
-  /** Flush write ahead log to disk */
-  public void flush() {
-    try (FileOutputStream f = new FileOutputStream(LOG, false);
-         ObjectOutputStream o = new ObjectOutputStream(f)) {
-      o.writeObject(coordinator);
+  /**
+   * Sync the write ahead log to disk, called by the group committer only. The log is checkpointed
+   * first once enough records are appended so that it does not grow without bound.
+   */
+  private void sync() {
+    long start = System.nanoTime();
+    try {
+      if (log.needsCheckpoint())
+        log.checkpoint(coordinator::checkpoint);
     } catch (Exception e) {
       e.printStackTrace();
     } finally {
       PL.fsync();
+      syncTime.record(System.nanoTime() - start);
+    }
+  }
+
+  /** Append a record to the write ahead log without forcing it, it is synced with the next flush */
+  public void append(LogRecord rec) {
+    long start = System.nanoTime();
+    try {
+      log.append(rec);
+    } catch (Exception e) {
+      e.printStackTrace();
     }
+    appendTime.record(System.nanoTime() - start);
   }
 
-  /** Load and replay logs from disk to recover system stage prioir to the node failure */
+  /** Append several records to the write ahead log at once without forcing them */
+  public void append(List<LogRecord> records) {
+    try {
+      log.append(records);
+    } catch (Exception e) {
+      e.printStackTrace();
+    }
+  }
+
+  /**
+   * Append a record to the write ahead log and flush it to disk together with the records of other
+   * in-flight commits.
+   * @param rec        the record to append
+   * @param onDurable  callback to run once the record is durable, e.g. sending a decision. It runs
+   *                   on the stripe of the commit, like the messages of that commit.
+   */
+  /**
+   * files and directories a transport has to force on fsync(): the log, the image directory where
+   * side files are renamed, and the working directory where collages are published
+   */
+  public List<Path> synced() {
+    return List.of(dir.resolve(LOG + suffix), dir.resolve(ImageStore.DIR + suffix), dir);
+  }
+
+  public void flush(LogRecord rec, Runnable onDurable) {
+    long start = System.nanoTime();
+    append(rec);
+    committer.commit(() -> {
+      flushTime.record(System.nanoTime() - start);
+      if (onDurable != null)
+        stripes.execute(rec.cid, onDurable);
+    });
+  }
+
+  /**
+   * Load and replay logs from disk to recover system stage prioir to the node failure. The log is
+   * streamed record by record, and messages are accepted as soon as the replay ends: the decisions
+   * of recovered commits are resent in parallel on their stripes, and the aborts of undecided
+   * commits are written with a single append and synced together before they are sent.
+   */
   public void recover() {
-    File log = new File(LOG);
-    if (!log.exists()) {
-      coordinator = new Coordinator();
-    } else {
-      try (FileInputStream f = new FileInputStream(LOG);
-           ObjectInputStream o = new ObjectInputStream(f)) {
-        coordinator = (Coordinator) o.readObject();
-        coordinator.info.forEach((cid, entry) -> {
-          if (entry.stage == Stage.PROPOSE) {
-            // abort uncommited transactions
-            entry.canCommit = false;
-            entry.endPrepareStage();
-            flush();
-            commit(entry);
-          } else if (entry.stage == Stage.COMMIT) {
-            // explicitly ask for ACK again
-            commit(entry);
-          }
-        });
-      } catch (Exception e) {
-        e.printStackTrace();
+    coordinator = new Coordinator(shard, shards);
+    log = new WriteAheadLog(dir.resolve(LOG + suffix).toString());
+    images = new ImageStore(dir, ImageStore.DIR + suffix);
+    try {
+      log.open(coordinator::apply);
+      // start from a compact log so the next replay only covers what happens from now on
+      log.checkpoint(coordinator::checkpoint);
+    } catch (Exception e) {
+      e.printStackTrace();
+    }
+    // undecided commits and committed ones that may not be published yet still own an image,
+    // anything else in the store is garbage
+    coordinator.info.forEach((cid, entry) -> {
+      if (entry.stage == Stage.PROPOSE || (entry.stage == Stage.COMMIT && entry.canCommit))
+        images.retain(entry.imgHash);
+    });
+    images.sweep();
+    List<LogRecord> aborts = new ArrayList<>();
+    List<CoordinatorEntry> aborted = new ArrayList<>();
+    coordinator.info.forEach((cid, entry) -> {
+      if (entry.stage == Stage.PROPOSE) {
+        // abort uncommited transactions
+        entry.canCommit = false;
+        entry.endPrepareStage();
+        writeFile(entry);
+        aborts.add(decisionRecord(entry));
+        aborted.add(entry);
+      } else if (entry.stage == Stage.COMMIT) {
+        // publish the collage unless it was before the crash, then explicitly ask for ACK again,
+        // the decision is durable already
+        if (entry.canCommit)
+          writeFile(entry);
+        stripes.execute(cid, () -> resume(entry));
       }
+    });
+    if (!aborts.isEmpty()) {
+      append(aborts);
+      committer.commit(
+          () -> aborted.forEach(entry -> stripes.execute(entry.cid, () -> resume(entry))));
     }
-    ready = true;
+    // resends are queued on the stripes first, so messages of a commit are handled after them
+    ready.countDown();
+  }
+
+  /** Resume the second stage of a commit recovered from the log */
+  private void resume(CoordinatorEntry entry) {
+    commit(entry);
+    // nobody is waited for: every user voted no, or it is an abort under presumed abort
+    if (entry.pendings.isEmpty() || (!entry.canCommit && MessageBody.PRESUMED_ABORT))
+      finish(entry);
+  }
+
+  /**
+   * Round-trip time estimate of a user in a stage. A prepare round trip includes asking the user,
+   * waiting for locks and a log sync, so it is tracked apart from the decision round trip, and its
+   * timeout is never shorter than the fixed MessageBody.TIMEOUT: a vote that is merely slow aborts
+   * the commit, while a decision that is resent too early costs only a duplicate message.
+   */
+  public RttEstimator rtt(String addr, Stage stage) {
+    long floor = (stage == Stage.PROPOSE) ? MessageBody.TIMEOUT : RttEstimator.MIN_TIMEOUT;
+    return rtts.computeIfAbsent(
+        addr + CoordinatorEntry.DELIMITER + stage, key -> new RttEstimator(floor));
+  }
+
+  /**
+   * Arm the timeout of a message sent to a user in the current stage of a commit, replacing the
+   * timeout of the previous message sent to that user. The timeout adapts to the round-trip time of
+   * the user, and backs off exponentially when the previous message to the user is being resent.
+   * @param resend  whether the message is a resend of the previous one
+   */
+  public void armTimeout(CoordinatorEntry entry, String addr, boolean resend) {
+    Stage stage = entry.stage;
+    Outstanding prev = entry.outstanding.get(addr);
+    int attempt = (resend && prev != null) ? prev.attempt + 1 : (resend ? 1 : 0);
+    RttEstimator rtt = rtt(addr, stage);
+    long delay = (attempt == 0) ? rtt.timeout() : rtt.backoff(attempt);
+    TimerWheel.Timeout timeout = timers.schedule(
+        delay, () -> stripes.execute(entry.cid, () -> checkTimeout(entry, addr, stage)));
+    entry.outstanding.put(addr, new Outstanding(timeout, System.currentTimeMillis(), attempt));
+    if (prev != null)
+      prev.timeout.cancel();
+  }
+
+  /**
+   * Cancel the timeout of the last message sent to a user once it is answered. Its round trip is
+   * sampled unless the message was resent, as the reply may then belong to an earlier copy.
+   */
+  public void cancelTimeout(CoordinatorEntry entry, String addr) {
+    Outstanding prev = entry.outstanding.remove(addr);
+    if (prev == null)
+      return;
+    prev.timeout.cancel();
+    if (prev.attempt == 0)
+      rtt(addr, entry.stage).sample(System.currentTimeMillis() - prev.sendTime);
+  }
+
+  /** send a message to a user, telling it which commits have ended on the way */
+  public void send(MessageBody body) {
+    body.watermark = watermark.getAsInt();
+    batcher.send(body);
+  }
+
+  /**
+   * end a commit and log its END record. It is retired from the coordinator, which moves the
+   * watermark past it, only once END is durable, since the users forget the commits below the
+   * watermark and a commit whose END is lost in a crash is resumed after recovery.
+   */
+  public void finish(CoordinatorEntry entry) {
+    entry.endCommitStage();
+    flush(LogRecord.end(entry.cid), () -> coordinator.retire(entry));
+    commitTime.record(System.nanoTime() - entry.decideTime);
+    (entry.canCommit ? committed : aborted).increment();
+    metrics.trace(entry.cid, Metrics.Event.END);
+    if (onFinish != null)
+      onFinish.accept(entry);
+  }
+
+  /** Helper function to create the decision message of a commit for a user */
+  public MessageBody decisionMessage(CoordinatorEntry entry, String addr) {
+    ArrayList<String> files = entry.userToFiles.get(addr);
+    String[] filesArr = listToArray(files);
+    Decision decision = (entry.canCommit) ? Decision.COMMIT : Decision.ABORT;
+    return new MessageBody(entry.cid, addr, filesArr, decision, System.currentTimeMillis());
+  }
+
+  /**
+   * Start or resume the prepare phase of a commit. The proposal carries the sources of all users,
+   * so it is the same for every participant and is encoded only once. An image larger than CHUNK
+   * follows the proposal in chunks, each also encoded once, so no message holds a large image.
+   */
+  public void prepare(CoordinatorEntry entry, byte[] img) {
+    prepare(entry, img, null);
   }
 
-  /** Start or resume the prepare phase of a commit */
-  public void prepare(CoordinatorEntry entry) {
+  /**
+   * Start the prepare phase of a commit that is part of a batch
+   * @param group  proposals of the batch for each participant, the proposal of this commit is added
+   *               to it under its lock instead of being sent on its own if not null
+   */
+  private void prepare(CoordinatorEntry entry, byte[] img, Map<String, List<byte[]>> group) {
+    List<String> dests = new ArrayList<>(entry.pendings);
+    boolean chunked = img.length > CHUNK && !MessageBody.LEGACY_CODEC;
+    String[] sources = CoordinatorEntry.joinSources(entry.userToFiles);
+    MessageBody body = new MessageBody(
+        entry.cid, null, chunked ? new byte[0] : img, sources, System.currentTimeMillis());
+    body.imgLength = img.length;
+    body.watermark = watermark.getAsInt();
     // send proposal to all participants
-    for (String addr : entry.pendings) {
-      ArrayList<String> files = entry.userToFiles.get(addr);
-      String[] filesArr = listToArray(files);
-      MessageBody body =
-          new MessageBody(entry.cid, addr, entry.img, filesArr, System.currentTimeMillis());
-      queue.add(body);
-      body.sendMessageBody(PL);
+    for (String addr : dests) armTimeout(entry, addr, false);
+    byte[] bytes = Batcher.encode(body);
+    if (bytes != null && group == null) {
+      batcher.sendAll(dests, bytes);
+    } else if (bytes != null) {
+      synchronized (group) {
+        for (String addr : dests) group.computeIfAbsent(addr, a -> new ArrayList<>()).add(bytes);
+      }
+    }
+    for (int offset = 0; chunked && offset < img.length; offset += CHUNK) {
+      int length = Math.min(CHUNK, img.length - offset);
+      batcher.sendAll(dests, MessageCodec.encodeChunk(entry.cid, img, offset, length));
     }
   }
 
   /** Start or resume the second stage of a commit*/
   public void commit(CoordinatorEntry entry) {
+    // under presumed abort, an abort is sent once and not acknowledged
+    boolean awaitAck = entry.canCommit || !MessageBody.PRESUMED_ABORT;
     // send commit message to all participants
     for (String addr : entry.pendings) {
-      ArrayList<String> files = entry.userToFiles.get(addr);
-      String[] filesArr = listToArray(files);
-      Decision decision = (entry.canCommit) ? Decision.COMMIT : Decision.ABORT;
-      MessageBody body =
-          new MessageBody(entry.cid, addr, filesArr, decision, System.currentTimeMillis());
-      queue.add(body);
-      body.sendMessageBody(PL);
+      MessageBody body = decisionMessage(entry, addr);
+      if (awaitAck)
+        armTimeout(entry, addr, false);
+      send(body);
+    }
+  }
+
+  /** the DECISION record of a commit, which is about to be appended to the log */
+  private LogRecord decisionRecord(CoordinatorEntry entry) {
+    entry.logged = true;
+    return LogRecord.decision(entry.cid, entry.canCommit);
+  }
+
+  /**
+   * End the prepare stage of a commit once all votes are received or it timed out, then log its
+   * decision and send it to the participants
+   */
+  public void decide(CoordinatorEntry entry) {
+    entry.endPrepareStage();
+    prepareTime.record(entry.decideTime - entry.startTime);
+    if (!entry.canCommit) {
+      logDecision(entry);
+      return;
+    }
+    // the image is written while the votes come in; it must be on disk before the decision is,
+    // since recovery publishes it from there, and a commit whose image could not be written aborts
+    images.whenWritten(entry.imgHash, written -> stripes.execute(entry.cid, () -> {
+      if (!written)
+        entry.canCommit = false;
+      logDecision(entry);
+    }));
+  }
+
+  /** log the decision of a commit whose prepare stage has ended and send it to the participants */
+  private void logDecision(CoordinatorEntry entry) {
+    metrics.trace(entry.cid, entry.canCommit ? Metrics.Event.COMMIT : Metrics.Event.ABORT);
+    if (entry.canCommit) {
+      // the image is published once the decision is durable
+      flush(decisionRecord(entry), () -> {
+        writeFile(entry);
+        commit(entry);
+      });
+      return;
     }
+    writeFile(entry);
+    if (entry.pendings.isEmpty()) {
+      // every user voted no, nobody has to learn the decision
+      append(decisionRecord(entry));
+      finish(entry);
+      return;
+    }
+    if (!MessageBody.PRESUMED_ABORT) {
+      flush(decisionRecord(entry), () -> commit(entry));
+      return;
+    }
+    // presumed abort: an abort is not forced to disk, since a commit that is missing from the log
+    // is aborted during recovery anyway, and the commit ends without waiting for ACKs
+    commit(entry);
+    append(decisionRecord(entry));
+    finish(entry);
   }
 
   /**
@@ -107,32 +420,36 @@ public class Server implements ProjectLib.MessageHandling, ProjectLib.CommitServ
    */
   public void handleVote(String addr, MessageBody msg) {
     CoordinatorEntry entry = coordinator.getEntry(msg.cid);
-    if (entry.stage == Stage.END) {
-      return; // transaction ended, discard vote
+    if (entry == null || entry.stage == Stage.END) {
+      // transaction ended and may be retired already, under presumed abort the user is asking
+      // about an aborted or unknown commit, otherwise discard the vote
+      Boolean committed = (entry != null) ? entry.canCommit : coordinator.recentDecision(msg.cid);
+      if (MessageBody.PRESUMED_ABORT && !Boolean.TRUE.equals(committed))
+        send(new MessageBody(msg.cid, addr, new String[0], Decision.ABORT, 0));
+      return;
     } else if (entry.stage == Stage.COMMIT) {
+      if (entry.released.contains(addr))
+        return; // duplicate no vote, the user is not part of the COMMIT stage
+      if (!entry.logged)
+        return; // the decision is sent to every user once it is durable
       // resend decision for that user node
-      ArrayList<String> files = entry.userToFiles.get(addr);
-      String[] filesArr = listToArray(files);
-      Decision decision = (entry.canCommit) ? Decision.COMMIT : Decision.ABORT;
-      MessageBody body =
-          new MessageBody(msg.cid, addr, filesArr, decision, System.currentTimeMillis());
-      queue.add(body);
-      body.sendMessageBody(PL);
+      MessageBody body = decisionMessage(entry, addr);
+      armTimeout(entry, addr, true);
+      // the decision may still be on its way to disk
+      committer.afterDurable(() -> send(body));
       return;
+    } else if (!entry.pendings.contains(addr)) {
+      return; // repeated vote, e.g. a yes voter asking again under presumed abort, already logged
     }
-    boolean vote = msg.vote;
-    if (!vote)
-      entry.canCommit = false; // all users must vote yes in order to commit
-    entry.pendings.remove(addr);
-    flush();
-    // all votes are received, move to the second phase
-    if (entry.pendings.isEmpty()) {
-      entry.endPrepareStage();
-      if (entry.canCommit)
-        writeFile(entry.filename, entry.img);
-      flush();
-      commit(entry);
-    }
+    cancelTimeout(entry, addr);
+    votes.increment();
+    metrics.trace(msg.cid, msg.vote ? Metrics.Event.VOTE_YES : Metrics.Event.VOTE_NO);
+    entry.vote(addr, msg.vote);
+    flush(LogRecord.vote(msg.cid, addr, msg.vote), null);
+    // all votes are received, or a single no vote already decides the commit: abort right away so
+    // the users that voted yes can release their locks without waiting for the remaining votes
+    if (entry.pendings.isEmpty() || !msg.vote)
+      decide(entry);
   }
 
   /**
@@ -142,47 +459,57 @@ public class Server implements ProjectLib.MessageHandling, ProjectLib.CommitServ
    */
   public void handleACK(String addr, MessageBody msg) {
     CoordinatorEntry entry = coordinator.getEntry(msg.cid);
-    if (entry.stage == Stage.END) {
+    if (entry == null || entry.stage == Stage.END) {
       return; // transaction ended, discard ACK
     }
+    cancelTimeout(entry, addr);
+    acks.increment();
+    metrics.trace(msg.cid, Metrics.Event.ACK);
     entry.pendings.remove(addr);
-    flush();
+    flush(LogRecord.ack(msg.cid, addr), null);
     // all acks received: mark end of a commit
-    if (entry.pendings.isEmpty()) {
-      entry.endCommitStage();
-      flush();
-    }
+    if (entry.pendings.isEmpty())
+      finish(entry);
   }
 
   /**
    * Callback to asynchronously receive reply messages from users and perform operations
-   * accordingly
+   * accordingly. Messages are handled on the stripe of their commit, so each commit is updated by
+   * one thread at a time while different commits proceed in parallel.
    */
-  public synchronized boolean deliverMessage(ProjectLib.Message msg) {
-    while (!ready) {
-      // wait for log to be loaded first
+  public boolean deliverMessage(ProjectLib.Message msg) {
+    try {
+      ready.await(); // wait for log to be loaded first
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return false;
     }
-    String addr = msg.addr;
-    MessageBody body = MessageBody.deserialize(msg.body);
-    assert (body != null);
-    if (body.isPrepare)
-      handleVote(addr, body); // vote for a commit
-    else
-      handleACK(addr, body); // ack to the commit
+    // a message may be an envelope with the replies of several commits
+    for (MessageBody body : MessageBody.deserializeAll(msg.body)) deliver(msg.addr, body);
     return true;
   }
 
+  /** handle a decoded reply from a user on the stripe of its commit */
+  public void deliver(String addr, MessageBody body) {
+    stripes.execute(body.cid, () -> {
+      if (body.isPrepare)
+        handleVote(addr, body); // vote for a commit
+      else
+        handleACK(addr, body); // ack to the commit
+    });
+  }
+
   /**
-   * Helper function to create a image file specified by the filename and write the collage image
+   * Helper function to publish the collage image of a committed commit under its filename once the
+   * decision is durable, or to drop it from the image store if the commit is aborted. Either way
+   * the outcome of the collage is final, and its future is completed.
    */
-  public void writeFile(String filename, byte[] img) {
-    try {
-      FileOutputStream fos = new FileOutputStream(filename);
-      fos.write(img);
-      fos.close();
-    } catch (Exception e) {
-      e.printStackTrace();
-    }
+  public void writeFile(CoordinatorEntry entry) {
+    if (entry.canCommit)
+      images.promote(entry.imgHash, dir.resolve(entry.filename));
+    else
+      images.discard(entry.imgHash);
+    entry.outcome.complete(entry.canCommit);
   }
 
   /**
@@ -190,51 +517,131 @@ public class Server implements ProjectLib.MessageHandling, ProjectLib.CommitServ
    * two-phase commit operation.
    */
   public void startCommit(String filename, byte[] img, String[] sources) {
-    CoordinatorEntry entry = coordinator.addEntry(filename, img, sources);
-    flush();
-    prepare(entry);
-  }
-
-  /** Check timeouted messages and perform necessary operations on it */
-  public void checkTimeout() {
-    synchronized (queue) {
-      ArrayList<MessageBody> newMessages = new ArrayList<>();
-      for (Iterator<MessageBody> it = queue.iterator(); it.hasNext();) {
-        MessageBody msg = it.next();
-        if (!msg.isExpired(System.currentTimeMillis()))
-          continue;
-        it.remove();
-        CoordinatorEntry entry = coordinator.getEntry(msg.cid);
-        if (msg.isPrepare && entry.stage == Stage.PROPOSE) {
-          // prepare stage timeout, treat as implicit abort
-          entry.canCommit = false;
-          entry.endPrepareStage();
-          flush();
-          commit(entry);
-        } else if (!msg.isPrepare && entry.stage == Stage.COMMIT) {
-          // commit stage timeout, need to resend decision
-          newMessages.add(msg);
+    startCommits(List.of(new CommitRequest(filename, img, sources)));
+  }
+
+  /**
+   * Start the two-phase commits of several collages at once. Their BEGIN records are appended to
+   * the log together and made durable by a single sync, and their proposals are sent in one
+   * envelope per participant, so a burst of collages does not pay for a log write and a round of
+   * messages each.
+   * @return a future for each collage, in order, completed with whether the collage is committed
+   */
+  public List<CompletableFuture<Boolean>> startCommits(List<CommitRequest> requests) {
+    List<CoordinatorEntry> entries = new ArrayList<>();
+    List<LogRecord> records = new ArrayList<>();
+    List<CompletableFuture<Boolean>> outcomes = new ArrayList<>();
+    for (CommitRequest req : requests) {
+      String imgHash = images.put(req.img);
+      CoordinatorEntry entry =
+          coordinator.addEntry(req.filename, imgHash, req.img.length, req.sources);
+      started.increment();
+      metrics.trace(entry.cid, Metrics.Event.BEGIN);
+      records.add(LogRecord.begin(entry.cid, req.filename, imgHash, req.img.length, req.sources));
+      entries.add(entry);
+      outcomes.add(entry.outcome);
+    }
+    if (entries.isEmpty())
+      return outcomes;
+    long start = System.nanoTime();
+    append(records);
+    committer.commit(() -> {
+      flushTime.record(System.nanoTime() - start);
+      prepareAll(entries, requests);
+    });
+    return outcomes;
+  }
+
+  /**
+   * Prepare a batch of commits once their BEGIN records are durable. Each commit is prepared on its
+   * own stripe, and the last one to be done sends the proposals of the whole batch.
+   */
+  private void prepareAll(List<CoordinatorEntry> entries, List<CommitRequest> requests) {
+    if (entries.size() == 1) {
+      CoordinatorEntry entry = entries.get(0);
+      stripes.execute(entry.cid, () -> prepare(entry, requests.get(0).img));
+      return;
+    }
+    HashMap<String, List<byte[]>> group = new HashMap<>(); // filled on the stripes of the batch
+    AtomicInteger remaining = new AtomicInteger(entries.size());
+    for (int i = 0; i < entries.size(); i++) {
+      CoordinatorEntry entry = entries.get(i);
+      byte[] img = requests.get(i).img;
+      stripes.execute(entry.cid, () -> {
+        try {
+          prepare(entry, img, group);
+        } finally {
+          if (remaining.decrementAndGet() == 0)
+            group.forEach(batcher::sendGroup);
         }
-      }
-      // resend decision
-      for (MessageBody msg : newMessages) {
-        msg.updateTime(System.currentTimeMillis());
-        msg.sendMessageBody(PL);
-        queue.add(msg);
-      }
+      });
+    }
+  }
+
+  /**
+   * Handle the timeout of the last message sent to a user for a commit. Does nothing if the message
+   * has been answered or the commit has moved on in the meantime.
+   * @param entry  the commit
+   * @param addr   destination of the message
+   * @param stage  stage of the commit when the message was sent
+   */
+  public void checkTimeout(CoordinatorEntry entry, String addr, Stage stage) {
+    if (entry.stage != stage || !entry.pendings.contains(addr))
+      return;
+    timeouts.increment();
+    metrics.trace(entry.cid, Metrics.Event.TIMEOUT);
+    if (stage == Stage.PROPOSE) {
+      // prepare stage timeout, treat as implicit abort
+      entry.canCommit = false;
+      decide(entry);
+    } else if (stage == Stage.COMMIT) {
+      // commit stage timeout, need to resend decision
+      MessageBody body = decisionMessage(entry, addr);
+      armTimeout(entry, addr, true);
+      send(body);
+    }
+  }
+
+  /**
+   * Start a commit for each line "<collage> <image file> <user>:<source> ..." of standard input,
+   * then keep running since the socket threads are daemons. Over sockets there is no Project4 to
+   * start the commits, so they come from here instead.
+   */
+  private static void serveInput(ProjectLib.CommitServing srv) throws Exception {
+    BufferedReader in = new BufferedReader(new InputStreamReader(System.in));
+    String line;
+    while ((line = in.readLine()) != null) {
+      String[] words = line.trim().split("\\s+");
+      if (words.length < 3)
+        continue;
+      srv.startCommit(words[0], Files.readAllBytes(Paths.get(words[1])),
+          Arrays.copyOfRange(words, 2, words.length));
     }
+    Thread.currentThread().join();
   }
 
   public static void main(String args[]) throws Exception {
     if (args.length != 1)
       throw new Exception("Need 1 arg: <port>");
+    if (ShardedServer.SHARDS > 1) {
+      ShardedServer srv = new ShardedServer(Paths.get(""), ShardedServer.SHARDS);
+      if (SocketTransport.SELECTED)
+        srv.setTransport(SocketTransport.fromProperties(MessageBody.SERVER, srv.synced(), srv));
+      else
+        srv.setTransport(
+            new ProjectLibTransport(new ProjectLib(Integer.parseInt(args[0]), srv, srv)));
+      srv.recover();
+      if (SocketTransport.SELECTED)
+        serveInput(srv);
+      return;
+    }
     Server srv = new Server();
-    PL = new ProjectLib(Integer.parseInt(args[0]), srv, srv);
+    if (SocketTransport.SELECTED)
+      srv.PL = SocketTransport.fromProperties(MessageBody.SERVER, srv.synced(), srv);
+    else
+      srv.PL = new ProjectLibTransport(new ProjectLib(Integer.parseInt(args[0]), srv, srv));
     srv.recover();
-    // periodically invoke timeout checking
-    while (true) {
-      Thread.sleep(COOLDOWN);
-      srv.checkTimeout();
-    }
+    if (SocketTransport.SELECTED)
+      serveInput(srv);
   }
 }
@@ -0,0 +1,115 @@
+/*
+ * @file   ShardedServer.java
+ *
+ * Router in front of several coordinator shards running in one server process, selected with
+ * -Dtwopc.shards=<number of shards>. Each shard is a Server with its own log, image store, timers
+ * and threads, so the commits of different shards never wait for each other's log syncs. New
+ * commits go to the shards in turn, and shard s hands out the commit ids s, s + shards, s + 2 *
+ * shards, ..., so the replies of the users are routed to the owning shard by their commit id alone.
+ * The users are told the lowest watermark of all shards, below which every commit of every shard
+ * has ended. A batch of commits is spread over the shards the same way, and each shard starts its
+ * part of the batch at once.
+ */
+
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+public class ShardedServer implements ProjectLib.MessageHandling, ProjectLib.CommitServing {
+  public static final int SHARDS = Integer.getInteger("twopc.shards", 1);
+
+  public final Server[] shards; // coordinator shards, commit c is owned by shards[c % length]
+  public final Metrics metrics; // counters, latencies and trace of the commits of all shards
+  private final AtomicInteger turn; // number of commits started, picks the shard of the next one
+
+  public ShardedServer(Path dir, int count) {
+    this.metrics = new Metrics(MessageBody.SERVER, dir);
+    this.shards = new Server[count];
+    for (int i = 0; i < count; i++) {
+      shards[i] = new Server(dir, i, count, metrics);
+      shards[i].watermark = this::lowWatermark;
+    }
+    this.turn = new AtomicInteger();
+  }
+
+  /** shard owning a commit */
+  public Server shard(int cid) {
+    return shards[Math.floorMod(cid, shards.length)];
+  }
+
+  public void setTransport(Transport PL) {
+    for (Server shard : shards) shard.PL = PL;
+  }
+
+  public void setOnFinish(Consumer<CoordinatorEntry> onFinish) {
+    for (Server shard : shards) shard.onFinish = onFinish;
+  }
+
+  /**
+   * lowest watermark of all shards, 0 until every shard has replayed its log since a shard that is
+   * still recovering does not know all of its commits yet
+   */
+  public int lowWatermark() {
+    int result = Integer.MAX_VALUE;
+    for (Server shard : shards) {
+      if (shard.ready.getCount() > 0)
+        return 0;
+      result = Math.min(result, shard.coordinator.lowWatermark());
+    }
+    return result;
+  }
+
+  /** files and directories of all shards a transport has to force on fsync() */
+  public List<Path> synced() {
+    LinkedHashSet<Path> result = new LinkedHashSet<>();
+    for (Server shard : shards) result.addAll(shard.synced());
+    return new ArrayList<>(result);
+  }
+
+  /** recover every shard from its own log */
+  public void recover() {
+    for (Server shard : shards) shard.recover();
+  }
+
+  /** start a commit on the next shard in turn, which assigns its commit id */
+  public void startCommit(String filename, byte[] img, String[] sources) {
+    shards[Math.floorMod(turn.getAndIncrement(), shards.length)].startCommit(
+        filename, img, sources);
+  }
+
+  /**
+   * start several commits at once, the i-th one on the shard it would go to if they were started
+   * one by one
+   * @return a future for each collage, in order, completed with whether the collage is committed
+   */
+  public List<CompletableFuture<Boolean>> startCommits(List<CommitRequest> requests) {
+    int first = turn.getAndAdd(requests.size());
+    List<List<CommitRequest>> parts = new ArrayList<>();
+    for (int s = 0; s < shards.length; s++) parts.add(new ArrayList<>());
+    for (int i = 0; i < requests.size(); i++)
+      parts.get(Math.floorMod(first + i, shards.length)).add(requests.get(i));
+    List<Iterator<CompletableFuture<Boolean>>> outcomes = new ArrayList<>();
+    for (int s = 0; s < shards.length; s++)
+      outcomes.add(shards[s].startCommits(parts.get(s)).iterator());
+    // put the futures of the parts back in the order of the requests
+    List<CompletableFuture<Boolean>> result = new ArrayList<>();
+    for (int i = 0; i < requests.size(); i++)
+      result.add(outcomes.get(Math.floorMod(first + i, shards.length)).next());
+    return result;
+  }
+
+  /** route the replies of a user to the shards owning their commits */
+  public boolean deliverMessage(ProjectLib.Message msg) {
+    try {
+      for (Server shard : shards) shard.ready.await(); // wait for logs to be loaded first
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return false;
+    }
+    for (MessageBody body : MessageBody.deserializeAll(msg.body))
+      shard(body.cid).deliver(msg.addr, body);
+    return true;
+  }
+}
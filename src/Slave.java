@@ -3,16 +3,22 @@
  * @author Tengda Wang <tengdaw@andrew.cmu.edu>
  *
  * This is the implementation of a log manager on the user side that tracks details of each
- * transaction/commit initiated by the server. The logs will be flushed to disk when the log entry
- * is updated for recovery purposes.
+ * transaction/commit initiated by the server. Every update of an entry is appended to the
+ * write-ahead log of the user node as a LogRecord, and the state is rebuilt by replaying these
+ * records in order, so logging a vote costs the same however many commits the node has seen. The
+ * locks are not logged themselves, they are derived from the entries during the replay. Entries of
+ * commits that have ended on the server are dropped once nothing is left to do for them, and are
+ * left out of the next checkpoint of the log.
  */
 
 import java.io.*;
+import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
 
 public class Slave implements Serializable {
   public ConcurrentHashMap<Integer, SlaveEntry> info;
   public ConcurrentHashMap<String, Integer> locked;
+  public int watermark; // every commit below it has ended on the server
 
   public Slave() {
     this.info = new ConcurrentHashMap<Integer, SlaveEntry>();
@@ -31,19 +37,65 @@ public class Slave implements Serializable {
     return entry;
   }
 
-  /** check whether a resource on the user node is already locked by another commit */
-  public boolean isLocked(String source) {
-    return locked.containsKey(source);
+  /** whether a commit without an entry has ended on the server, so its messages are stale */
+  public boolean isEnded(int cid) {
+    return cid < watermark && !info.containsKey(cid);
   }
 
-  /** explicit lock a resource for a commit */
-  public void lockFile(String source, int cid) {
-    locked.put(source, cid);
+  /** replay a record from the write-ahead log, replaying a record twice changes nothing */
+  public void apply(LogRecord rec) {
+    if (rec.type == LogRecord.Type.CHECKPOINT) {
+      watermark = Math.max(watermark, rec.cid);
+      return;
+    }
+    if (rec.type == LogRecord.Type.VOTED) {
+      info.putIfAbsent(rec.cid, new SlaveEntry(rec.cid, rec.sources, rec.flag));
+      return;
+    }
+    SlaveEntry entry = info.get(rec.cid);
+    if (entry == null)
+      return;
+    if (rec.type == LogRecord.Type.DECISION)
+      entry.updateDecision(rec.flag ? Decision.COMMIT : Decision.ABORT);
+    else if (rec.type == LogRecord.Type.DELETED)
+      entry.deleted = true;
   }
 
-  /** explicitly unlock a resource previously locked by a commit */
-  public void unlockFile(String source, int cid) {
-    if (locked.containsKey(source) && locked.get(source) == cid)
-      locked.remove(source);
+  /**
+   * lock the sources of every yes vote that is still waiting for its decision or for its sources to
+   * be deleted, once the log is replayed
+   */
+  public void restoreLocks() {
+    for (SlaveEntry entry : info.values()) {
+      if (!entry.isDone()) {
+        for (String source : entry.sources) locked.put(source, entry.cid);
+      }
+    }
+  }
+
+  /** compact set of records from which the current state can be rebuilt */
+  public List<LogRecord> checkpoint() {
+    List<LogRecord> records = new ArrayList<>();
+    records.add(LogRecord.checkpoint(watermark));
+    for (SlaveEntry entry : info.values()) {
+      records.add(LogRecord.voted(entry.cid, entry.sources, entry.vote));
+      if (entry.decision != Decision.UNKNOWN)
+        records.add(LogRecord.decision(entry.cid, entry.decision == Decision.COMMIT));
+      if (entry.deleted)
+        records.add(LogRecord.deleted(entry.cid));
+    }
+    return records;
+  }
+
+  /**
+   * advance the watermark reported by the server and drop the entries below it, unless they voted
+   * yes and still wait for the decision, which is never acknowledged under presumed abort, or for
+   * their sources to be deleted
+   */
+  public void advance(int watermark) {
+    if (watermark <= this.watermark)
+      return;
+    this.watermark = watermark;
+    info.values().removeIf(entry -> entry.cid < watermark && entry.isDone());
   }
 }
\ No newline at end of file
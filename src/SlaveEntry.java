@@ -14,6 +14,7 @@ public class SlaveEntry implements Serializable {
   public final String[] sources;
   public final boolean vote;
   public Decision decision;
+  public boolean deleted; // whether the sources are deleted, once the commit decision is durable
 
   public SlaveEntry(int cid, String[] sources, boolean vote) {
     this.cid = cid;
@@ -22,6 +23,11 @@ public class SlaveEntry implements Serializable {
     this.decision = Decision.UNKNOWN;
   }
 
+  /** whether nothing is left to do for the commit on this node */
+  public boolean isDone() {
+    return !vote || decision == Decision.ABORT || (decision == Decision.COMMIT && deleted);
+  }
+
   /** update the decision of a commit, used when the decision is recevied from the server */
   public void updateDecision(Decision decision) {
     this.decision = decision;
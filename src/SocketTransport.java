@@ -0,0 +1,240 @@
+/*
+ * @file   SocketTransport.java
+ *
+ * Transport over TCP for nodes that run without ProjectLib, e.g. as separate processes on one
+ * machine. Every node listens on its own address, and the addresses of all nodes are given by an
+ * address book shared by the nodes. A message is sent over a connection to its destination that is
+ * opened on first use, framed as
+ *
+ * [body length][sender length][sender][body]
+ *
+ * where the lengths are a 4-byte int and a 2-byte short. The body is written and read in place, so
+ * it is never copied on the way. One selector thread reads the connections of the node and hands
+ * the received messages to the node on a pool of threads. A message that cannot be sent is lost,
+ * which the protocol recovers from anyway. An fsync forces the files and directories the node hands
+ * over, i.e. its log and the directories whose entries it changes. Users approve every proposal.
+ *
+ * The Server and UserNode mains use this transport instead of ProjectLib with
+ * -Dtwopc.transport=socket, given the address book of all nodes as
+ * -Dtwopc.peers=Server=host:port,a=host:port,... where each node listens on its own entry, and
+ * their port argument is ignored.
+ */
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+public class SocketTransport implements Transport, Runnable {
+  private static final int HEAD = 6; // body length + sender length
+  public static final boolean SELECTED = "socket".equals(System.getProperty("twopc.transport"));
+  public static final String PEERS = System.getProperty("twopc.peers", ""); // address book
+
+  private final String addr; // address of this node
+  private final Map<String, InetSocketAddress> peers; // where each node listens
+  private final Collection<Path> synced; // files and directories made durable by fsync()
+  private final ProjectLib.MessageHandling node;
+  private final ServerSocketChannel listener;
+  private final Selector selector;
+  private final ConcurrentHashMap<String, SocketChannel> links; // connection to each destination
+  private final ExecutorService handlers; // hand received messages to the node
+
+  /** message being read from a connection */
+  private static class Frame {
+    final ByteBuffer head = ByteBuffer.allocate(HEAD);
+    int length; // length of the body, known once the head is complete
+    ByteBuffer sender; // read once the head is complete
+    ByteBuffer body; // read once the sender is complete
+  }
+
+  public SocketTransport(String addr, InetSocketAddress bind, Map<String, InetSocketAddress> peers,
+      Collection<Path> synced, ProjectLib.MessageHandling node) throws IOException {
+    this.addr = addr;
+    this.peers = peers;
+    this.synced = synced;
+    this.node = node;
+    this.links = new ConcurrentHashMap<>();
+    this.handlers = Executors.newCachedThreadPool(r -> {
+      Thread t = new Thread(r, addr + "-socket");
+      t.setDaemon(true);
+      return t;
+    });
+    this.selector = Selector.open();
+    this.listener = ServerSocketChannel.open();
+    listener.bind(bind);
+    listener.configureBlocking(false);
+    listener.register(selector, SelectionKey.OP_ACCEPT);
+    Thread t = new Thread(this, addr + "-selector");
+    t.setDaemon(true);
+    t.start();
+  }
+
+  /**
+   * static helper function to parse an address book of the form "Server=host:port,a=host:port"
+   * @throws IllegalArgumentException  if an entry is not of the form name=host:port
+   */
+  public static Map<String, InetSocketAddress> parsePeers(String book) {
+    Map<String, InetSocketAddress> peers = new ConcurrentHashMap<>();
+    for (String entry : book.split(",")) {
+      if (entry.isBlank())
+        continue;
+      int eq = entry.indexOf('=');
+      int colon = entry.lastIndexOf(':');
+      if (eq <= 0 || colon < eq)
+        throw new IllegalArgumentException("bad peer " + entry + ", expected name=host:port");
+      String host = entry.substring(eq + 1, colon).trim();
+      int port = Integer.parseInt(entry.substring(colon + 1).trim());
+      peers.put(entry.substring(0, eq).trim(), new InetSocketAddress(host, port));
+    }
+    return peers;
+  }
+
+  /** transport of a node started on its own, listening on its entry of -Dtwopc.peers */
+  public static SocketTransport fromProperties(String addr, Collection<Path> synced,
+      ProjectLib.MessageHandling node) throws IOException {
+    Map<String, InetSocketAddress> peers = parsePeers(PEERS);
+    InetSocketAddress bind = peers.get(addr);
+    if (bind == null)
+      throw new IOException("no address of " + addr + " in twopc.peers");
+    return new SocketTransport(addr, bind, peers, synced, node);
+  }
+
+  /** address this node listens on, e.g. when it was bound to an ephemeral port */
+  public InetSocketAddress localAddress() throws IOException {
+    return (InetSocketAddress) listener.getLocalAddress();
+  }
+
+  /** connection to a destination, opened on first use */
+  private SocketChannel link(String dest) throws IOException {
+    SocketChannel link = links.get(dest);
+    if (link != null)
+      return link;
+    InetSocketAddress peer = peers.get(dest);
+    if (peer == null)
+      throw new IOException("unknown destination " + dest);
+    link = SocketChannel.open(peer);
+    link.setOption(StandardSocketOptions.TCP_NODELAY, true);
+    SocketChannel prev = links.putIfAbsent(dest, link);
+    if (prev != null) {
+      link.close();
+      return prev;
+    }
+    return link;
+  }
+
+  public void sendMessage(ProjectLib.Message msg) {
+    byte[] sender = addr.getBytes(StandardCharsets.UTF_8);
+    ByteBuffer head = ByteBuffer.allocate(HEAD + sender.length);
+    head.putInt(msg.body.length).putShort((short) sender.length).put(sender).flip();
+    ByteBuffer[] frame = {head, ByteBuffer.wrap(msg.body)};
+    SocketChannel link = null;
+    try {
+      link = link(msg.addr);
+      synchronized (link) {
+        while (frame[0].hasRemaining() || frame[1].hasRemaining()) link.write(frame);
+      }
+    } catch (IOException e) {
+      // the message is lost, the next one opens a new connection
+      if (link != null) {
+        links.remove(msg.addr, link);
+        try {
+          link.close();
+        } catch (IOException ignored) {
+        }
+      }
+    }
+  }
+
+  /** force the files and directories of the node, skipping those that do not exist yet */
+  public void fsync() {
+    for (Path path : synced) {
+      try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+        channel.force(true);
+      } catch (NoSuchFileException e) {
+        // not created yet, nothing to force
+      } catch (IOException e) {
+        e.printStackTrace();
+      }
+    }
+  }
+
+  public boolean askUser(byte[] img, String[] sources) {
+    return true;
+  }
+
+  /** read whatever is available on a connection, and hand over every message completed */
+  private void read(SelectionKey key) throws IOException {
+    SocketChannel channel = (SocketChannel) key.channel();
+    Frame frame = (Frame) key.attachment();
+    while (true) {
+      ByteBuffer buf = (frame.body != null) ? frame.body
+          : (frame.sender != null) ? frame.sender : frame.head;
+      if (channel.read(buf) < 0) {
+        key.cancel();
+        channel.close();
+        return;
+      }
+      if (buf.hasRemaining())
+        return;
+      if (buf == frame.head) {
+        frame.head.flip();
+        frame.length = frame.head.getInt();
+        frame.sender = ByteBuffer.allocate(frame.head.getShort());
+        continue;
+      }
+      if (buf == frame.sender) {
+        frame.body = ByteBuffer.allocate(frame.length);
+        if (frame.length > 0)
+          continue;
+      }
+      String sender = new String(frame.sender.array(), StandardCharsets.UTF_8);
+      byte[] body = frame.body.array();
+      frame.head.clear();
+      frame.sender = null;
+      frame.body = null;
+      handlers.execute(() -> {
+        try {
+          node.deliverMessage(new ProjectLib.Message(sender, body));
+        } catch (Exception e) {
+          e.printStackTrace();
+        }
+      });
+    }
+  }
+
+  public void run() {
+    while (true) {
+      try {
+        selector.select();
+        Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+        while (keys.hasNext()) {
+          SelectionKey key = keys.next();
+          keys.remove();
+          if (key.isAcceptable()) {
+            SocketChannel channel = listener.accept();
+            if (channel == null)
+              continue;
+            channel.configureBlocking(false);
+            channel.register(selector, SelectionKey.OP_READ, new Frame());
+          } else if (key.isReadable()) {
+            try {
+              read(key);
+            } catch (IOException e) {
+              key.cancel();
+              key.channel().close();
+            }
+          }
+        }
+      } catch (ClosedSelectorException e) {
+        return;
+      } catch (IOException e) {
+        e.printStackTrace();
+      }
+    }
+  }
+}
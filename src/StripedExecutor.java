@@ -0,0 +1,36 @@
+/*
+ * @file   StripedExecutor.java
+ *
+ * A fixed set of single-threaded executors ("stripes"). Tasks are routed to a stripe by a key,
+ * e.g. the commit id, so that all tasks of the same key run one at a time and in submission order,
+ * while tasks of different keys can run in parallel on different stripes.
+ */
+
+import java.util.concurrent.*;
+
+public class StripedExecutor {
+  private final ExecutorService[] stripes;
+
+  public StripedExecutor(int n, String name) {
+    stripes = new ExecutorService[n];
+    for (int i = 0; i < n; i++) {
+      String threadName = name + "-" + i;
+      stripes[i] = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, threadName);
+        t.setDaemon(true);
+        return t;
+      });
+    }
+  }
+
+  /** run a task on the stripe owning the given key */
+  public void execute(int key, Runnable task) {
+    stripes[Math.floorMod(key, stripes.length)].execute(() -> {
+      try {
+        task.run();
+      } catch (Exception e) {
+        e.printStackTrace();
+      }
+    });
+  }
+}
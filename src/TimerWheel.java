@@ -0,0 +1,118 @@
+/*
+ * @file   TimerWheel.java
+ *
+ * A hashed timing wheel used to track the timeout of outstanding messages. Time is divided into
+ * ticks and each timeout is hashed into the bucket of the tick its deadline falls in, together with
+ * the number of full rotations of the wheel left before it is due. Arming and cancelling a timeout
+ * are O(1), and a background thread visits one bucket per tick, so a timeout fires at most one
+ * tick after its deadline no matter how many timeouts are outstanding.
+ */
+
+public class TimerWheel implements Runnable {
+  /** handle of an armed timeout, which can be cancelled before it fires */
+  public class Timeout {
+    private final Runnable task;
+    private final long deadline;
+    private long rounds; // full rotations of the wheel left before the timeout is due
+    private int bucket = -1; // bucket holding the timeout, -1 once fired or cancelled
+    private Timeout prev;
+    private Timeout next;
+
+    private Timeout(Runnable task, long deadline) {
+      this.task = task;
+      this.deadline = deadline;
+    }
+
+    /** cancel the timeout, does nothing if it has already fired */
+    public void cancel() {
+      synchronized (TimerWheel.this) {
+        unlink(this);
+      }
+    }
+  }
+
+  private final long tick; // duration of a tick in milliseconds
+  private final Timeout[] buckets; // head of the list of timeouts in each bucket
+  private final long start; // time of tick 0
+  private long ticks; // number of ticks processed so far
+
+  public TimerWheel(long tick, int size, String name) {
+    this.tick = tick;
+    this.buckets = new Timeout[size];
+    this.start = System.currentTimeMillis();
+    this.ticks = 0;
+    Thread t = new Thread(this, name);
+    t.setDaemon(true);
+    t.start();
+  }
+
+  /**
+   * Arm a timeout that runs a task after the given delay. The task runs on the timer thread, so it
+   * should only hand the actual work over to another thread.
+   */
+  public synchronized Timeout schedule(long delay, Runnable task) {
+    long deadline = System.currentTimeMillis() + Math.max(delay, 0);
+    Timeout timeout = new Timeout(task, deadline);
+    // never schedule into a tick that has already been processed
+    long due = Math.max((deadline - start + tick - 1) / tick, ticks);
+    timeout.rounds = (due - ticks) / buckets.length;
+    timeout.bucket = (int) (due % buckets.length);
+    timeout.next = buckets[timeout.bucket];
+    if (timeout.next != null)
+      timeout.next.prev = timeout;
+    buckets[timeout.bucket] = timeout;
+    return timeout;
+  }
+
+  private void unlink(Timeout timeout) {
+    if (timeout.bucket < 0)
+      return;
+    if (timeout.prev != null)
+      timeout.prev.next = timeout.next;
+    else
+      buckets[timeout.bucket] = timeout.next;
+    if (timeout.next != null)
+      timeout.next.prev = timeout.prev;
+    timeout.prev = timeout.next = null;
+    timeout.bucket = -1;
+  }
+
+  /** collect the timeouts of the current tick that are due and advance to the next tick */
+  private synchronized Timeout expire() {
+    Timeout expired = null;
+    Timeout timeout = buckets[(int) (ticks % buckets.length)];
+    while (timeout != null) {
+      Timeout next = timeout.next;
+      if (timeout.rounds <= 0) {
+        unlink(timeout);
+        timeout.next = expired;
+        expired = timeout;
+      } else {
+        timeout.rounds--;
+      }
+      timeout = next;
+    }
+    ticks++;
+    return expired;
+  }
+
+  public void run() {
+    while (true) {
+      long sleep = start + (ticks + 1) * tick - System.currentTimeMillis();
+      if (sleep > 0) {
+        try {
+          Thread.sleep(sleep);
+        } catch (InterruptedException e) {
+          return;
+        }
+      }
+      for (Timeout timeout = expire(); timeout != null; timeout = timeout.next) {
+        try {
+          timeout.task.run();
+        } catch (Exception e) {
+          e.printStackTrace();
+        }
+      }
+    }
+  }
+}
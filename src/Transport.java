@@ -0,0 +1,24 @@
+/*
+ * @file   Transport.java
+ *
+ * The services a node needs from its environment: sending messages to other nodes, making its
+ * files durable, and asking its user about a proposal. Received messages go the other way, through
+ * the ProjectLib.MessageHandling callback of the node that is given to the transport when it is
+ * created. Nodes only talk to their environment through this interface, so the same code runs on
+ * top of any of the implementations:
+ *
+ * ProjectLibTransport -> ProjectLib, when nodes run as separate processes under Project4
+ * LoopbackNetwork -> in memory between nodes of one JVM, with delay, loss and reordering
+ * SocketTransport -> TCP between nodes that run without ProjectLib, in one or several processes
+ */
+
+public interface Transport {
+  /** send a message to the node given by its address */
+  void sendMessage(ProjectLib.Message msg);
+
+  /** make the log of the node and the changes to its directories durable */
+  void fsync();
+
+  /** ask the user of the node whether the given sources may be used in a collage */
+  boolean askUser(byte[] img, String[] sources);
+}
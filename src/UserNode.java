@@ -8,153 +8,507 @@
  * (e.g. resource locking and deletion).
  */
 
-import java.io.*;
+import java.nio.file.*;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
 
 public class UserNode implements ProjectLib.MessageHandling {
   public static final String LOG = "WAL";
+  public static final long LOCK_WAIT = Long.getLong("twopc.lockWait", 500); // in milliseconds
+  public static final int RECENT_VOTES = Integer.getInteger("twopc.recentVotes", 4096);
   public final String myId;
-  public boolean ready;
+  public volatile boolean ready;
   public Slave slave;
-  public static ProjectLib PL;
+  public WriteAheadLog log; // append-only write ahead log of the votes and decisions
+  public GroupCommitter committer; // batches log flushes across concurrent commits
+  public TimerWheel timers; // schedules lock waits and, under presumed abort, inquiries
+  public LockManager locks; // locks on the files of this node
+  public final Deleter deleter; // deletes the sources of committed collages in batches
+  public final LinkedHashMap<Integer, MessageBody> parked; // proposals waiting for locks
+  public final HashMap<Integer, MessageBody> asking; // proposals the user is being asked about
+  public final HashMap<Integer, Reassembly> assemblies; // proposals whose image is still coming
+  public final ExecutorService askers; // threads asking the user about proposals
+  private final Map<Integer, Boolean> recentVotes; // durable votes of recent proposals, LRU
+  private final ArrayList<MessageBody> outgoing; // durable replies waiting to be sent
+  public final Metrics metrics; // counters, latencies and trace of the commits
+  private final LongAdder prepares; // proposals received, including repeated ones
+  private final LongAdder decisions; // decisions received, including repeated ones
+  private final LongAdder lockWaits; // proposals that had to wait for locks
+  private final LongAdder duplicates; // repeated proposals answered before decoding them
+  private final Metrics.Histogram askTime; // asking the user about a proposal
+  private final Metrics.Histogram appendTime; // encoding and writing a record to the log
+  private final Metrics.Histogram syncTime; // one sync of the log, including any checkpoint
+  private final Metrics.Histogram flushTime; // from handling a batch until its updates are durable
+  public Transport PL; // sends and receives messages, syncs files to disk, asks the user
+  public final Path dir; // working directory holding the log and the source files
 
   public UserNode(String id) {
+    this(id, Paths.get(""));
+  }
+
+  public UserNode(String id, Path dir) {
     this.myId = id;
+    this.dir = dir;
     this.ready = false;
+    this.outgoing = new ArrayList<>();
+    this.committer = new GroupCommitter(this::sync, this::sendReplies);
+    this.timers = new TimerWheel(Server.TICK, Server.WHEEL_SIZE, "user-timer");
+    this.deleter = new Deleter(dir, () -> PL.fsync(), this::deleted, "deleter");
+    this.parked = new LinkedHashMap<>();
+    this.asking = new HashMap<>();
+    this.assemblies = new HashMap<>();
+    this.askers = Executors.newCachedThreadPool(r -> {
+      Thread t = new Thread(r, "ask-user");
+      t.setDaemon(true);
+      return t;
+    });
+    this.recentVotes = Collections.synchronizedMap(new LinkedHashMap<>(16, 0.75f, true) {
+      protected boolean removeEldestEntry(Map.Entry<Integer, Boolean> eldest) {
+        return size() > RECENT_VOTES;
+      }
+    });
+    this.metrics = new Metrics(id, dir);
+    this.prepares = metrics.counter("prepares");
+    this.decisions = metrics.counter("decisions");
+    this.lockWaits = metrics.counter("lockWaits");
+    this.duplicates = metrics.counter("duplicates");
+    metrics.gauge("commits", () -> (slave == null) ? 0 : slave.info.size());
+    metrics.gauge("locks", () -> (slave == null) ? 0 : slave.locked.size());
+    this.askTime = metrics.histogram("askUser");
+    this.appendTime = metrics.histogram("log.append");
+    this.syncTime = metrics.histogram("log.sync");
+    this.flushTime = metrics.histogram("log.flush");
   }
 
-  /** flush log to disk */
-  public void flush() {
-    try (FileOutputStream f = new FileOutputStream(LOG, false);
-         ObjectOutputStream o = new ObjectOutputStream(f)) {
-      o.writeObject(slave);
+  /**
+   * Sync the write ahead log to disk, called by the group committer only, so one sync covers every
+   * record appended since the previous one. The log is checkpointed first once enough records are
+   * appended, off the threads handling messages, so that it does not grow without bound.
+   */
+  private void sync() {
+    long start = System.nanoTime();
+    try {
+      if (log.needsCheckpoint())
+        log.checkpoint(slave::checkpoint);
     } catch (Exception e) {
       e.printStackTrace();
     } finally {
       PL.fsync();
+      syncTime.record(System.nanoTime() - start);
     }
   }
 
-  /** load log from disk during start-up or recovery to restore state before node failure*/
+  /**
+   * Append a record to the write ahead log without forcing it, it is synced with the next flush.
+   * Records are small, so logging a vote takes the same time however long the node has run.
+   */
+  public void append(LogRecord rec) {
+    long start = System.nanoTime();
+    try {
+      log.append(rec);
+    } catch (Exception e) {
+      e.printStackTrace();
+    }
+    appendTime.record(System.nanoTime() - start);
+  }
+
+  /**
+   * flush log to disk once for all updates made while handling a batch of messages, then run the
+   * follow-up work of the batch and send its replies to the server, in one envelope with the
+   * replies of every other batch made durable by the same sync
+   */
+  public void flush(Outbox out) {
+    long start = System.nanoTime();
+    if (out.logged) {
+      // the replies are sent after the sync, together with those of other batches it covers
+      committer.commit(() -> release(out, start));
+      return;
+    }
+    // replies may depend on updates still being synced
+    committer.afterDurable(() -> {
+      release(out, start);
+      sendReplies();
+    });
+  }
+
+  /** run the follow-up work of a durable batch and queue its replies */
+  private void release(Outbox out, long start) {
+    flushTime.record(System.nanoTime() - start);
+    synchronized (this) {
+      for (Runnable action : out.actions) action.run();
+    }
+    for (MessageBody reply : out.replies) {
+      if (reply.type == MessageType.VOTE)
+        recentVotes.put(reply.cid, reply.vote);
+    }
+    synchronized (outgoing) {
+      outgoing.addAll(out.replies);
+    }
+  }
+
+  /**
+   * send the queued replies in one envelope. It runs after every sync, so votes on proposals that
+   * the user answered one by one on the asker threads still go out together when synced together.
+   */
+  private void sendReplies() {
+    ArrayList<MessageBody> replies;
+    synchronized (outgoing) {
+      if (outgoing.isEmpty())
+        return;
+      replies = new ArrayList<>(outgoing);
+      outgoing.clear();
+    }
+    MessageBody.sendMessageBodies(PL, MessageBody.SERVER, replies);
+  }
+
+  /**
+   * files and directories a transport has to force on fsync(): the log, and the working directory
+   * where sources are deleted
+   */
+  public List<Path> synced() {
+    return List.of(dir.resolve(LOG), dir);
+  }
+
+  /**
+   * replay the log from disk during start-up or recovery to restore state before node failure. The
+   * sources of a commit that was decided but not yet deleted are queued for deletion again.
+   */
   public void recover() {
-    File log = new File(LOG);
-    if (!log.exists()) {
-      slave = new Slave();
-    } else {
-      // read log from disk
-      try (FileInputStream f = new FileInputStream(LOG);
-           ObjectInputStream o = new ObjectInputStream(f)) {
-        slave = (Slave) o.readObject();
-      } catch (Exception e) {
-        e.printStackTrace();
-      }
+    slave = new Slave();
+    log = new WriteAheadLog(dir.resolve(LOG).toString());
+    try {
+      log.open(slave::apply);
+      // start from a compact log so the next replay only covers what happens from now on
+      log.checkpoint(slave::checkpoint);
+    } catch (Exception e) {
+      e.printStackTrace();
+    }
+    slave.restoreLocks();
+    locks = new LockManager(slave.locked);
+    slave.info.forEach((cid, entry) -> {
+      if (entry.decision == Decision.COMMIT && !entry.deleted)
+        deleter.submit(entry);
+    });
+    if (MessageBody.PRESUMED_ABORT) {
+      slave.info.forEach((cid, entry) -> {
+        if (entry.vote && entry.decision == Decision.UNKNOWN)
+          askLater(cid);
+      });
     }
     ready = true;
   }
 
+  /**
+   * Under presumed abort, the server does not resend an abort, so a user that voted yes asks about
+   * the decision again by resending its vote when it hears nothing for a while
+   */
+  public void askLater(int cid) {
+    timers.schedule(MessageBody.TIMEOUT, () -> {
+      synchronized (this) {
+        SlaveEntry entry = slave.getEntry(cid);
+        if (entry == null || entry.decision != Decision.UNKNOWN)
+          return;
+        MessageBody replyBody = new MessageBody(cid, entry.vote);
+        replyBody.sendMessageBody(PL);
+        askLater(cid);
+      }
+    });
+  }
+
+  /** keep only the files of this node among the sources of a proposal, which lists every user's */
+  private String[] ownSources(String[] sources) {
+    ArrayList<String> files = CoordinatorEntry.parseSources(sources).get(myId);
+    return (files == null) ? new String[0] : Server.listToArray(files);
+  }
+
+  /**
+   * Collect a proposal or a chunk of its image, and handle the proposal once its whole image has
+   * arrived. A proposal that is known already needs no image, and its chunks are dropped.
+   */
+  public void receivePrepare(MessageBody msg, Outbox out) {
+    boolean known = slave.getEntry(msg.cid) != null || slave.isEnded(msg.cid)
+        || parked.containsKey(msg.cid) || asking.containsKey(msg.cid);
+    if (msg.type == MessageType.PREPARE) {
+      msg.sources = ownSources(msg.sources);
+      if (known || msg.img.length == msg.imgLength) {
+        handlePrepare(msg, out);
+        return;
+      }
+    }
+    if (known)
+      return;
+    Reassembly assembly = assemblies.computeIfAbsent(msg.cid, cid -> new Reassembly(msg.imgLength));
+    if (msg.type == MessageType.PREPARE)
+      assembly.header = msg;
+    else
+      assembly.add(msg);
+    if (assembly.complete()) {
+      assemblies.remove(msg.cid);
+      handlePrepare(assembly.proposal(), out);
+    }
+  }
+
   /** Handle a proposal from the server */
-  public void handlePrepare(MessageBody msg) {
+  public void handlePrepare(MessageBody msg, Outbox out) {
+    prepares.increment();
     // resend saved decision if already processed
     SlaveEntry prevEntry = slave.getEntry(msg.cid);
     if (prevEntry != null) {
-      MessageBody replyBody = new MessageBody(msg.cid, prevEntry.vote);
-      replyBody.sendMessageBody(PL);
+      out.reply(new MessageBody(msg.cid, prevEntry.vote));
       return;
     }
+    if (slave.isEnded(msg.cid))
+      return; // late copy of a proposal that has ended, do not lock anything for it
+    if (parked.containsKey(msg.cid) || asking.containsKey(msg.cid))
+      return; // still in progress, the vote is sent once it is known
 
-    // ask user first
-    boolean vote = PL.askUser(msg.img, msg.sources);
-    if (vote) {
-      // check file exitance and lock status
-      for (String source : msg.sources) {
-        File file = new File(source);
-        if (!file.exists() || slave.isLocked(source)) {
-          vote = false;
-          break;
-        }
+    // ask user first on a separate thread, so a user that is slow to answer does not hold up other
+    // proposals and decisions
+    metrics.trace(msg.cid, Metrics.Event.PREPARE);
+    asking.put(msg.cid, msg);
+    askers.execute(() -> {
+      boolean approved = false;
+      long start = System.nanoTime();
+      try {
+        approved = PL.askUser(msg.img, msg.sources);
+      } catch (Exception e) {
+        e.printStackTrace();
       }
-      // processed to lock resources
-      if (vote) {
-        for (String source : msg.sources) slave.lockFile(source, msg.cid);
+      askTime.record(System.nanoTime() - start);
+      synchronized (this) {
+        if (asking.remove(msg.cid) == null)
+          return; // decided while the user was asked, nothing to lock
+        Outbox reply = new Outbox();
+        lock(msg, approved, reply);
+        flush(reply);
+      }
+    });
+  }
+
+  /** check file existance and lock all files of an approved proposal at once, then vote */
+  private void lock(MessageBody msg, boolean approved, Outbox out) {
+    boolean vote = approved && exists(msg.sources);
+    if (vote && !locks.acquireAll(msg.sources, msg.cid)) {
+      if (LOCK_WAIT > 0) {
+        park(msg);
+        return;
       }
+      vote = false;
     }
+    vote(msg, vote, out);
+  }
+
+  /** check whether all resources of a proposal exist on this node */
+  private boolean exists(String[] sources) {
+    for (String source : sources) {
+      if (!Files.exists(dir.resolve(source)))
+        return false;
+    }
+    return true;
+  }
+
+  /** log the vote to a proposal, resources are already locked for a yes vote */
+  private void vote(MessageBody msg, boolean vote, Outbox out) {
+    metrics.trace(msg.cid, vote ? Metrics.Event.VOTE_YES : Metrics.Event.VOTE_NO);
     // write-ahead log
     slave.addEntry(msg.cid, msg.sources, vote);
-    flush();
-    // send reply to server
-    MessageBody replyBody = new MessageBody(msg.cid, vote);
-    replyBody.sendMessageBody(PL);
+    append(LogRecord.voted(msg.cid, msg.sources, vote));
+    out.log((vote && MessageBody.PRESUMED_ABORT) ? () -> askLater(msg.cid) : null);
+    // send reply to server once the vote is durable
+    out.reply(new MessageBody(msg.cid, vote));
+  }
+
+  /**
+   * wait LOCK_WAIT for files locked by other commits, which may well finish in the meantime, and
+   * vote no if they are still locked in the end
+   */
+  private void park(MessageBody msg) {
+    lockWaits.increment();
+    parked.put(msg.cid, msg);
+    timers.schedule(LOCK_WAIT, () -> {
+      synchronized (this) {
+        MessageBody waiting = parked.remove(msg.cid);
+        if (waiting == null)
+          return;
+        Outbox out = new Outbox();
+        vote(waiting, false, out);
+        flush(out);
+      }
+    });
+  }
+
+  /** retry the waiting proposals in arrival order once resources are unlocked */
+  private void retryParked() {
+    if (parked.isEmpty())
+      return;
+    Outbox out = new Outbox();
+    Iterator<MessageBody> it = parked.values().iterator();
+    while (it.hasNext()) {
+      MessageBody msg = it.next();
+      if (!exists(msg.sources)) {
+        it.remove();
+        vote(msg, false, out);
+      } else if (locks.acquireAll(msg.sources, msg.cid)) {
+        it.remove();
+        vote(msg, true, out);
+      }
+    }
+    if (!out.replies.isEmpty())
+      flush(out);
   }
 
   /** handle a commit message from the server */
-  public void handleCommit(MessageBody msg) {
+  public void handleCommit(MessageBody msg, Outbox out) {
     Decision decision = msg.decision;
     assert (!msg.isPrepare);
     assert (decision != Decision.UNKNOWN);
+    decisions.increment();
 
     SlaveEntry entry = slave.getEntry(msg.cid);
 
     if (entry == null) {
+      // decided while the user was asked or the proposal waited for locks
+      asking.remove(msg.cid);
+      parked.remove(msg.cid);
+      assemblies.remove(msg.cid);
+      if (slave.isEnded(msg.cid)) {
+        // late copy of a decision that was already applied and forgotten, acknowledging it again is
+        // always safe, and ends the commit if the server lost the earlier ACK in a crash
+        if (decision == Decision.COMMIT || !MessageBody.PRESUMED_ABORT)
+          out.reply(new MessageBody(msg.cid));
+        return;
+      }
       // special case: implicit abort due to timeout
       assert (msg.decision == Decision.ABORT);
+      if (MessageBody.PRESUMED_ABORT)
+        return; // presumed abort: nothing is locked, nothing to log or acknowledge
       entry = slave.addEntry(msg.cid, msg.sources, false);
       entry.updateDecision(msg.decision);
-      flush();
+      append(LogRecord.voted(msg.cid, msg.sources, false));
+      append(LogRecord.decision(msg.cid, false));
+      out.log(null);
       // send ACK back, no need to unlock resources
-      MessageBody replyBody = new MessageBody(msg.cid);
-      replyBody.sendMessageBody(PL);
+      out.reply(new MessageBody(msg.cid));
       return;
     }
 
+    // under presumed abort, an abort is not acknowledged
+    boolean ack = (decision == Decision.COMMIT) || !MessageBody.PRESUMED_ABORT;
     if (entry.decision != Decision.UNKNOWN) {
       // message already answered before, resend ack
-      MessageBody replyBody = new MessageBody(msg.cid);
-      replyBody.sendMessageBody(PL);
+      if (ack)
+        out.reply(new MessageBody(msg.cid));
       return;
     }
 
     // otherwise, update decision in log
     assert (entry.decision == Decision.UNKNOWN);
     entry.updateDecision(decision);
-    flush();
-    // unlock resources
-    for (String source : msg.sources) {
-      slave.unlockFile(source, msg.cid);
-      // commit should delete files
+    append(LogRecord.decision(msg.cid, decision == Decision.COMMIT));
+    metrics.trace(
+        msg.cid, (decision == Decision.COMMIT) ? Metrics.Event.COMMIT : Metrics.Event.ABORT);
+    String[] sources = entry.sources;
+    if (!ack) {
+      // presumed abort: the abort is not forced to disk, if it is lost the user asks again
+      locks.releaseAll(sources, msg.cid);
+      retryParked();
+      return;
+    }
+    SlaveEntry decided = entry;
+    out.log(() -> {
+      // commit should delete files once the decision is durable, they stay locked until then
       if (decision == Decision.COMMIT) {
-        File file = new File(source);
-        file.delete();
+        deleter.submit(decided);
+        return;
       }
-    }
+      // unlock resources and hand them to proposals waiting for them
+      locks.releaseAll(sources, msg.cid);
+      retryParked();
+    });
     // send ACK back
-    MessageBody replyBody = new MessageBody(msg.cid);
-    replyBody.sendMessageBody(PL);
+    out.reply(new MessageBody(msg.cid));
+  }
+
+  /**
+   * whether a message from the server needs its payload decoded, judged from its header only. A
+   * repeated proposal with a durable vote in the cache is answered right away, and a proposal that
+   * has ended or a chunk of an image that is not needed anymore is dropped.
+   */
+  private boolean wanted(MessageType type, int cid, List<MessageBody> answered) {
+    if (type != MessageType.PREPARE && type != MessageType.CHUNK)
+      return true;
+    Boolean vote = recentVotes.get(cid);
+    if (vote != null && type == MessageType.PREPARE) {
+      duplicates.increment();
+      answered.add(new MessageBody(cid, vote));
+      return false;
+    }
+    return vote == null && !slave.isEnded(cid)
+        && (type == MessageType.PREPARE || !slave.info.containsKey(cid));
+  }
+
+  /**
+   * log that the sources of a batch of commits are deleted, which is durable already, then unlock
+   * them and hand them to proposals waiting for them. The records are synced with the next flush,
+   * and the deletions are redone if they are lost.
+   */
+  private synchronized void deleted(List<SlaveEntry> batch) {
+    for (SlaveEntry entry : batch) {
+      entry.deleted = true;
+      append(LogRecord.deleted(entry.cid));
+      locks.releaseAll(entry.sources, entry.cid);
+    }
+    retryParked();
   }
 
   /**
    * Callback to asynchronously receive messages from the server and perform operations
-   * accordingly
+   * accordingly. A message may be an envelope of several messages, which are handled with a single
+   * log flush and answered with a single envelope. Messages are decoded before taking the node
+   * lock, and repeated proposals are answered without it.
    */
-  public synchronized boolean deliverMessage(ProjectLib.Message msg) {
+  public boolean deliverMessage(ProjectLib.Message msg) {
     while (!ready) {
       // wait for log to be loaded first
     }
-    MessageBody body = MessageBody.deserialize(msg.body);
-    assert (body != null);
-    int cid = body.cid;
-    if (body.isPrepare)
-      handlePrepare(body);
-    else
-      handleCommit(body);
+    ArrayList<MessageBody> answered = new ArrayList<>();
+    List<MessageBody> bodies =
+        MessageBody.deserializeAll(msg.body, (type, cid) -> wanted(type, cid, answered));
+    MessageBody.sendMessageBodies(PL, MessageBody.SERVER, answered);
+    if (!bodies.isEmpty())
+      handleMessages(bodies);
     return true;
   }
 
+  /** handle the decoded messages of a delivery under the node lock */
+  private synchronized void handleMessages(List<MessageBody> bodies) {
+    Outbox out = new Outbox();
+    for (MessageBody body : bodies) {
+      if (body.watermark > slave.watermark) {
+        slave.advance(body.watermark);
+        assemblies.keySet().removeIf(cid -> cid < slave.watermark);
+      }
+      if (body.isPrepare)
+        receivePrepare(body, out);
+      else
+        handleCommit(body, out);
+    }
+    flush(out);
+  }
+
   public static void main(String args[]) throws Exception {
     if (args.length != 2)
       throw new Exception("Need 2 args: <port> <id>");
     UserNode UN = new UserNode(args[1]);
-    PL = new ProjectLib(Integer.parseInt(args[0]), args[1], UN);
+    if (SocketTransport.SELECTED)
+      UN.PL = SocketTransport.fromProperties(args[1], UN.synced(), UN);
+    else
+      UN.PL = new ProjectLibTransport(new ProjectLib(Integer.parseInt(args[0]), args[1], UN));
     // alwasy attempt to load log first
     UN.recover();
+    // the socket threads are daemons, keep running
+    if (SocketTransport.SELECTED)
+      Thread.currentThread().join();
   }
 }
@@ -0,0 +1,127 @@
+/*
+ * @file   WriteAheadLog.java
+ *
+ * An append-only write-ahead log of LogRecords backed by a FileChannel. Each record is framed as
+ * [length][crc32][payload] so that a torn record at the tail, left by a crash in the middle of an
+ * append, is detected and discarded on replay. To keep replay time bounded, the owner of the log
+ * periodically rewrites it with a compact set of records describing its current state
+ * (checkpoint), which atomically replaces the old log.
+ */
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.List;
+import java.util.function.*;
+import java.util.zip.CRC32;
+
+public class WriteAheadLog {
+  public static final int CHECKPOINT_INTERVAL = 1024; // appends between two checkpoints
+  private static final int HEADER = 8; // record length + crc32
+
+  private final Path path;
+  private FileChannel channel;
+  private int appended; // number of records appended since the last checkpoint
+
+  public WriteAheadLog(String path) {
+    this.path = Paths.get(path);
+  }
+
+  /** frame a list of records into a single buffer ready to be written to disk */
+  private static ByteBuffer encode(List<LogRecord> records) throws IOException {
+    ByteArrayOutputStream b = new ByteArrayOutputStream();
+    DataOutputStream o = new DataOutputStream(b);
+    CRC32 crc = new CRC32();
+    for (LogRecord rec : records) {
+      ByteArrayOutputStream payload = new ByteArrayOutputStream();
+      rec.writeTo(new DataOutputStream(payload));
+      byte[] bytes = payload.toByteArray();
+      crc.reset();
+      crc.update(bytes);
+      o.writeInt(bytes.length);
+      o.writeInt((int) crc.getValue());
+      o.write(bytes);
+    }
+    o.flush();
+    return ByteBuffer.wrap(b.toByteArray());
+  }
+
+  private static void writeFully(FileChannel channel, ByteBuffer buf) throws IOException {
+    while (buf.hasRemaining()) channel.write(buf);
+  }
+
+  /**
+   * Replay all intact records in the log in order, then open the log for appending. A torn or
+   * corrupted tail is truncated so new records are appended right after the last intact one.
+   */
+  public synchronized void open(Consumer<LogRecord> consumer) throws IOException {
+    channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+        StandardOpenOption.WRITE);
+    long size = channel.size();
+    long pos = 0;
+    ByteBuffer header = ByteBuffer.allocate(HEADER);
+    CRC32 crc = new CRC32();
+    while (pos + HEADER <= size) {
+      header.clear();
+      channel.read(header, pos);
+      header.flip();
+      int len = header.getInt();
+      int checksum = header.getInt();
+      if (len < 0 || pos + HEADER + len > size)
+        break; // torn record
+      ByteBuffer payload = ByteBuffer.allocate(len);
+      long at = pos + HEADER;
+      while (payload.hasRemaining() && channel.read(payload, at + payload.position()) > 0) {
+      }
+      crc.reset();
+      crc.update(payload.array());
+      if ((int) crc.getValue() != checksum)
+        break; // corrupted record
+      DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload.array()));
+      consumer.accept(LogRecord.readFrom(in));
+      pos += HEADER + len;
+    }
+    channel.truncate(pos);
+    channel.position(pos);
+  }
+
+  /** append a record to the end of the log, the caller is responsible for syncing it to disk */
+  public synchronized void append(LogRecord rec) throws IOException {
+    writeFully(channel, encode(List.of(rec)));
+    appended++;
+  }
+
+  /** append several records to the end of the log with a single write */
+  public synchronized void append(List<LogRecord> records) throws IOException {
+    writeFully(channel, encode(records));
+    appended += records.size();
+  }
+
+  /** whether enough records have been appended since the last checkpoint */
+  public synchronized boolean needsCheckpoint() {
+    return appended >= CHECKPOINT_INTERVAL;
+  }
+
+  /**
+   * Replace the whole log by the records describing the current state. They are written to a
+   * temporary file first, which is then atomically renamed over the log, so a crash leaves either
+   * the old or the new log. The state is captured while holding the log, so no record appended
+   * concurrently can be lost by the rewrite.
+   * @param state  supplies the records from which the current state can be rebuilt
+   */
+  public synchronized void checkpoint(Supplier<List<LogRecord>> state) throws IOException {
+    List<LogRecord> records = state.get();
+    Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+    try (FileChannel out = FileChannel.open(tmp, StandardOpenOption.CREATE,
+             StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+      writeFully(out, encode(records));
+      out.force(true);
+    }
+    channel.close();
+    Files.move(tmp, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    channel = FileChannel.open(path, StandardOpenOption.WRITE);
+    channel.position(channel.size());
+    appended = 0;
+  }
+}